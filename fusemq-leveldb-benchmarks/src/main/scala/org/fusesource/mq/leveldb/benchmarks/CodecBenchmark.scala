@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb.benchmarks
+
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations._
+import org.fusesource.mq.leveldb.LevelDBClient
+import org.fusesource.mq.leveldb.LevelDBClient.{ENTRY_PREFIX, STRIPE_POSITION_SHIFT}
+import org.fusesource.hawtbuf.Buffer
+
+/**
+ * <p>
+ * Measures the key and locator codecs every stored message goes
+ * through.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations=5)
+@Measurement(iterations=10)
+class CodecBenchmark {
+
+  var collection_key = 5L
+  var seq = 123456789L
+  var position = (2L << STRIPE_POSITION_SHIFT) + 987654321L
+  var length = 1024
+
+  val entry_key = LevelDBClient.encodeEntryKey(ENTRY_PREFIX, collection_key, seq)
+  val other_entry_key = LevelDBClient.encodeEntryKey(ENTRY_PREFIX, collection_key, seq+1)
+  val locator = LevelDBClient.encodeLocator(position, length)
+
+  @Benchmark
+  def encodeEntryKey:Array[Byte] = LevelDBClient.encodeEntryKey(ENTRY_PREFIX, collection_key, seq)
+
+  @Benchmark
+  def decodeEntryKey:(Byte, Long, Buffer) = LevelDBClient.decodeEntryKey(entry_key)
+
+  @Benchmark
+  def decodeEntrySeq:Long = LevelDBClient.decodeEntrySeq(entry_key)
+
+  @Benchmark
+  def encodeLongKey:Array[Byte] = LevelDBClient.encodeLongKey(ENTRY_PREFIX, collection_key)
+
+  @Benchmark
+  def encodeLocator:Array[Byte] = LevelDBClient.encodeLocator(position, length)
+
+  @Benchmark
+  def decodeLocator:(Long, Int) = LevelDBClient.decodeLocator(locator)
+
+  @Benchmark
+  def compareKeys:Int = LevelDBClient.compareKeys(entry_key, other_entry_key)
+
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb.benchmarks
+
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations._
+import org.fusesource.mq.leveldb.CollectionMetaMap
+import org.fusesource.mq.leveldb.util.LongLongHashMap
+
+/**
+ * <p>
+ * Compares the primitive long maps that track the log refs and the
+ * collection metas against the boxed java.util.HashMap they replaced.
+ * An operation is one pass over `keys` keys.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations=5)
+@Measurement(iterations=10)
+class LongMapBenchmark {
+
+  @Param(Array("100", "100000"))
+  var keys:Int = _
+
+  var log_refs:LongLongHashMap = _
+  var boxed_log_refs:java.util.HashMap[java.lang.Long, java.lang.Long] = _
+  var collection_meta:CollectionMetaMap = _
+
+  // The keys look like log positions, 1MB apart.
+  def key(i:Int) = i.toLong << 20
+
+  @Setup
+  def setup:Unit = {
+    log_refs = new LongLongHashMap()
+    boxed_log_refs = new java.util.HashMap[java.lang.Long, java.lang.Long]()
+    collection_meta = new CollectionMetaMap()
+    var i = 0
+    while( i < keys ) {
+      log_refs.put(key(i), 1)
+      boxed_log_refs.put(key(i), 1L)
+      collection_meta.put(i, 0, 0)
+      i += 1
+    }
+  }
+
+  @Benchmark
+  def addAndGet:Long = {
+    var rc = 0L
+    var i = 0
+    while( i < keys ) {
+      rc += log_refs.addAndGet(key(i), 1)
+      i += 1
+    }
+    rc
+  }
+
+  @Benchmark
+  def boxedAddAndGet:Long = {
+    var rc = 0L
+    var i = 0
+    while( i < keys ) {
+      val k:java.lang.Long = key(i)
+      val v = boxed_log_refs.get(k).longValue() + 1
+      boxed_log_refs.put(k, v)
+      rc += v
+      i += 1
+    }
+    rc
+  }
+
+  @Benchmark
+  def removeAndPut:Int = {
+    var i = 0
+    while( i < keys ) {
+      log_refs.remove(key(i))
+      log_refs.put(key(i), 1)
+      i += 1
+    }
+    log_refs.size
+  }
+
+  @Benchmark
+  def boxedRemoveAndPut:Int = {
+    var i = 0
+    while( i < keys ) {
+      boxed_log_refs.remove(key(i))
+      boxed_log_refs.put(key(i), 1L)
+      i += 1
+    }
+    boxed_log_refs.size
+  }
+
+  @Benchmark
+  def collectionMetaIncrement:Long = {
+    var i = 0
+    while( i < keys ) {
+      collection_meta.increment(i, i)
+      i += 1
+    }
+    collection_meta.sizeOf(0)
+  }
+
+}
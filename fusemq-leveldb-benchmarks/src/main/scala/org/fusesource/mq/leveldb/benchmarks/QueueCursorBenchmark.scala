@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb.benchmarks
+
+import java.io.File
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations._
+
+/**
+ * <p>
+ * Measures a queueCursor scan over a whole queue.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations=5)
+@Measurement(iterations=10)
+class QueueCursorBenchmark {
+
+  @Param(Array("org.iq80.leveldb.impl.Iq80DBFactory", "org.fusesource.leveldbjni.JniDBFactory"))
+  var indexFactory:String = _
+
+  @Param(Array("10000"))
+  var queueSize:Int = _
+
+  @Param(Array("100", "1000"))
+  var cursorBatchSize:Int = _
+
+  var fixture:StoreFixture = _
+  var queue_key = 0L
+
+  @Setup
+  def setup:Unit = {
+    fixture = new StoreFixture(new File("target/benchmarks/queue-cursor"), indexFactory)
+    fixture.start(true)
+    queue_key = fixture.create_queue("benchmark")
+    var seq = 1L
+    while( seq <= queueSize ) {
+      seq = fixture.store_batch(queue_key, 100, 1, 1024, seq)
+    }
+  }
+
+  @TearDown
+  def tear_down:Unit = fixture.stop
+
+  @Benchmark
+  def scan:Int = {
+    var count = 0
+    fixture.client.queueCursor(queue_key, 0, cursorBatchSize) { message =>
+      count += 1
+      true
+    }
+    count
+  }
+
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb.benchmarks
+
+import java.io.File
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations._
+import org.fusesource.hawtbuf.Buffer
+import org.fusesource.mq.leveldb.{LevelDBClient, RecordLog}
+import org.fusesource.mq.leveldb.util.FileSupport._
+
+/**
+ * <p>
+ * Measures RecordLog appends and reads.  Every append goes through
+ * RecordLog.appender so it gets flushed like a stored unit of work.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations=5)
+@Measurement(iterations=10)
+class RecordLogBenchmark {
+
+  @Param(Array("128", "4096"))
+  var recordSize:Int = _
+
+  @Param(Array("false", "true"))
+  var directWriteBuffer:Boolean = _
+
+  @Param(Array("false", "true"))
+  var compressBlocks:Boolean = _
+
+  // Pre-written records for the read benchmarks.
+  val READ_RECORDS = 10000
+
+  val directory = new File("target/benchmarks/record-log")
+  var log:RecordLog = _
+  var data:Buffer = _
+  var locators:Array[(Long, Int)] = _
+  var reads_limit = 0L
+  var next_read = 0
+
+  @Setup
+  def setup:Unit = {
+    directory.recursiveDelete
+    directory.mkdirs()
+    log = new RecordLog(directory, LevelDBClient.LOG_SUFFIX)
+    log.logSize = 1024*1024*64
+    log.direct_write_buffer = directWriteBuffer
+    log.compress_blocks = compressBlocks
+    log.open
+    data = new Buffer(recordSize)
+    locators = Array.fill(READ_RECORDS)(log.appender { appender =>
+      (appender.append(LevelDBClient.LOG_DATA, data)._1, recordSize)
+    })
+    reads_limit = log.appender_limit
+  }
+
+  /**
+   * Drops the log files the appends filled so the benchmark does not
+   * fill up the disk.
+   */
+  @TearDown(Level.Iteration)
+  def drop_appended:Unit = {
+    import collection.JavaConversions._
+    log.log_infos.map(_.position).filter(_ > reads_limit).foreach(log.delete(_))
+  }
+
+  @TearDown
+  def tear_down:Unit = log.close
+
+  @Benchmark
+  def append:Long = log.appender { appender =>
+    appender.append(LevelDBClient.LOG_DATA, data)._1
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(10)
+  def appendBatch:Long = log.appender { appender =>
+    var i = 0
+    var rc = 0L
+    while( i < 10 ) {
+      rc = appender.append(LevelDBClient.LOG_DATA, data)._1
+      i += 1
+    }
+    rc
+  }
+
+  @Benchmark
+  def read:Option[Buffer] = {
+    val (pos, length) = locators(next_read)
+    next_read = (next_read + 7919) % READ_RECORDS
+    log.read(pos, length)
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(100)
+  def readBatch:Array[Buffer] = {
+    val start = next_read
+    next_read = (next_read + 100) % (READ_RECORDS-100)
+    log.read_batch(locators.slice(start, start+100))
+  }
+
+}
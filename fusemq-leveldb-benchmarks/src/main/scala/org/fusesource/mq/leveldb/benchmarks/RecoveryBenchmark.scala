@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb.benchmarks
+
+import java.io.File
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations._
+import org.fusesource.mq.leveldb.util.FileSupport._
+
+/**
+ * <p>
+ * Measures a store start that has to replay the whole log because the
+ * index snapshots were dropped.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.SingleShotTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations=3)
+@Measurement(iterations=10)
+class RecoveryBenchmark {
+
+  @Param(Array("org.iq80.leveldb.impl.Iq80DBFactory", "org.fusesource.leveldbjni.JniDBFactory"))
+  var indexFactory:String = _
+
+  @Param(Array("50000"))
+  var messages:Int = _
+
+  var fixture:StoreFixture = _
+
+  @Setup(Level.Trial)
+  def load:Unit = {
+    fixture = new StoreFixture(new File("target/benchmarks/recovery"), indexFactory)
+    fixture.start(true)
+    val queue_key = fixture.create_queue("benchmark")
+    var seq = 1L
+    while( seq <= messages ) {
+      seq = fixture.store_batch(queue_key, 100, 1, 256, seq)
+    }
+    fixture.stop
+  }
+
+  @Setup(Level.Invocation)
+  def drop_index:Unit = {
+    fixture.directory.listFiles.filter(_.getName.endsWith(".index")).foreach(_.recursiveDelete)
+  }
+
+  @Benchmark
+  def replay:Unit = fixture.start(false)
+
+  @TearDown(Level.Invocation)
+  def stop:Unit = fixture.stop
+
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb.benchmarks
+
+import java.io.File
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations._
+
+/**
+ * <p>
+ * Measures LevelDBClient.store with synthetic unit of work batches.  An
+ * operation is one batch of `batchSize` units of work holding one
+ * enqueue each.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations=5)
+@Measurement(iterations=10)
+class StoreBenchmark {
+
+  @Param(Array("org.iq80.leveldb.impl.Iq80DBFactory", "org.fusesource.leveldbjni.JniDBFactory"))
+  var indexFactory:String = _
+
+  @Param(Array("1", "100"))
+  var batchSize:Int = _
+
+  @Param(Array("1024"))
+  var messageSize:Int = _
+
+  var fixture:StoreFixture = _
+  var queue_key = 0L
+  var next_seq = 1L
+
+  @Setup
+  def setup:Unit = {
+    fixture = new StoreFixture(new File("target/benchmarks/store"), indexFactory)
+    fixture.start(true)
+    queue_key = fixture.create_queue("benchmark")
+  }
+
+  @TearDown
+  def tear_down:Unit = fixture.stop
+
+  @Benchmark
+  def store:Long = {
+    next_seq = fixture.store_batch(queue_key, batchSize, 1, messageSize, next_seq)
+    next_seq
+  }
+
+}
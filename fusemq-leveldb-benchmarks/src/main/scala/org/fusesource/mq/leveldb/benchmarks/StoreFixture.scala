@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb.benchmarks
+
+import java.io.File
+import org.fusesource.hawtdispatch._
+import org.fusesource.mq.leveldb.{DelayableUOW, LevelDBStore}
+import org.fusesource.mq.leveldb.UowManagerConstants._
+import org.fusesource.mq.leveldb.util.FileSupport._
+import org.apache.activemq.command.{ActiveMQBytesMessage, ActiveMQQueue, MessageId, ProducerId}
+import org.apache.activemq.util.ByteSequence
+
+object StoreFixture {
+  final val IQ80_FACTORY = "org.iq80.leveldb.impl.Iq80DBFactory"
+  final val JNI_FACTORY = "org.fusesource.leveldbjni.JniDBFactory"
+}
+
+/**
+ * <p>
+ * A LevelDB store in a scratch directory which the benchmarks drive
+ * directly through it's DBManager and LevelDBClient.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class StoreFixture(val directory:File, val index_factory:String) {
+
+  val producer = new ProducerId("ID:benchmark:1:1")
+  var last_message_id = 0L
+  var store:LevelDBStore = _
+
+  def manager = store.db
+  def client = store.db.client
+
+  def start(clean:Boolean) = {
+    if( clean ) {
+      directory.recursiveDelete
+    }
+    store = new LevelDBStore
+    store.setDirectory(directory)
+    store.setIndexFactory(index_factory)
+    store.setSync(false)
+    store.start
+  }
+
+  def stop = {
+    store.stop
+    store = null
+  }
+
+  def create_queue(name:String) = {
+    manager.createStore(new ActiveMQQueue(name), QUEUE_COLLECTION_TYPE)
+  }
+
+  def message(size:Int) = {
+    last_message_id += 1
+    val rc = new ActiveMQBytesMessage
+    rc.setMessageId(new MessageId(producer, last_message_id))
+    rc.setContent(new ByteSequence(new Array[Byte](size)))
+    rc
+  }
+
+  /**
+   * Stores a batch of units of work that enqueue `enqueues` messages each
+   * like the DBManager flush does, but synchronously.  Returns the next
+   * queue sequence.
+   */
+  def store_batch(queue_key:Long, uows:Int, enqueues:Int, message_size:Int, next_seq:Long):Long = {
+    var seq = next_seq
+    val batch = Array.fill[DelayableUOW](uows) {
+      val uow = manager.createUow()
+      for( i <- 0 until enqueues ) {
+        uow.enqueue(queue_key, seq, message(message_size), false)
+        seq += 1
+      }
+      uow
+    }
+    manager.writeExecutor.sync {
+      client.store(batch)
+    }
+    manager.dispatchQueue.sync {
+      batch.foreach(_.onCompleted)
+    }
+    seq
+  }
+
+}
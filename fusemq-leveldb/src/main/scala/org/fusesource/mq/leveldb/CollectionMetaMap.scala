@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb
+
+import util.LongHashTable
+
+/**
+ * <p>
+ * Tracks the size and the last entry sequence of every collection,
+ * flattened into a primitive hash table.  A last sequence of 0 means
+ * that the collection has no last entry key.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class CollectionMetaMap(initial_capacity:Int = 16) extends LongHashTable(2, initial_capacity) {
+
+  private final val SIZE = 0
+  private final val LAST_SEQ = 1
+
+  private def value(key:Long, field:Int) = {
+    val t = table
+    val i = slot(t, key)
+    if( i < 0 ) 0L else t.values(i*2+field)
+  }
+
+  def sizeOf(key:Long):Long = value(key, SIZE)
+  def lastSeqOf(key:Long):Long = value(key, LAST_SEQ)
+
+  /**
+   * Sets the meta of the collection, adding it if needed.
+   */
+  def put(key:Long, size:Long, last_seq:Long) = {
+    val i = insert(key)
+    val t = table
+    t.values(i*2+SIZE) = size
+    t.values(i*2+LAST_SEQ) = last_seq
+  }
+
+  /**
+   * Records an entry added to the collection, if the collection exists.
+   */
+  def increment(key:Long, last_seq:Long) = {
+    val t = table
+    val i = slot(t, key)
+    if( i >= 0 ) {
+      t.values(i*2+SIZE) += 1
+      t.values(i*2+LAST_SEQ) = last_seq
+    }
+  }
+
+  /**
+   * Records an entry removed from the collection, if the collection exists.
+   */
+  def decrement(key:Long) = {
+    val t = table
+    val i = slot(t, key)
+    if( i >= 0 ) {
+      t.values(i*2+SIZE) -= 1
+    }
+  }
+
+  def foreach(func:(Long, Long, Long)=>Unit) = {
+    val t = table
+    var i = 0
+    while( i < t.capacity ) {
+      if( t.used(i) ) {
+        func(t.keys(i), t.values(i*2+SIZE), t.values(i*2+LAST_SEQ))
+      }
+      i += 1
+    }
+  }
+
+}
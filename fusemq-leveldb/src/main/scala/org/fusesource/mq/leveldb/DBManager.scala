@@ -28,7 +28,7 @@ import scala.Option._
 import org.fusesource.hawtbuf.Buffer._
 import org.apache.activemq.command._
 import org.fusesource.mq.leveldb.record.{SubscriptionRecord, CollectionRecord}
-import util.TimeMetric
+import util.{LatencyReporter, TimeMetric}
 import java.util.HashMap
 import collection.mutable.{HashSet, ListBuffer}
 import org.apache.activemq.thread.DefaultThreadPools
@@ -130,6 +130,7 @@ class DelayableUOW(val manager:DBManager) extends BaseRetained {
   var actions = Map[MessageId, MessageAction]()
   var subAcks = ListBuffer[SubAckRecord]()
   var completed = false
+  var delayed = false
   var disableDelay = false
   var delayableActions = 0
 
@@ -366,6 +367,7 @@ class DBManager(val parent:LevelDBStore) {
   var uowStoredCounter = 0L
 
   val uow_complete_latency = TimeMetric() 
+  val flush_delay_policy = new FlushDelayPolicy(this)
 
 //  val closeSource = createSource(new ListEventAggregator[DelayableUOW](), dispatchQueue)
 //  closeSource.setEventHandler(^{
@@ -413,6 +415,13 @@ class DBManager(val parent:LevelDBStore) {
             prev_uow.synchronized {
               if( !prev_uow.canceled ) {
 
+                // Only the delayed UOWs get weighed against the ones which
+                // got flushed.
+                if( prev_uow.delayed ) {
+                  flush_delay_policy.canceled(entry.queueKey,
+                    if( prev_uow.disposed_at==0 ) 0 else System.nanoTime() - prev_uow.disposed_at)
+                }
+
                 prev_uow.delayableActions -= 1
 
                 // yay we can cancel out a previous enqueue
@@ -450,15 +459,17 @@ class DBManager(val parent:LevelDBStore) {
       if( uow.delayable ) {
         // Let the uow get GCed if its' canceled during the delay window..
         val ref = new WeakReference[DelayableUOW](uow)
-        scheduleFlush(ref)
+        uow.delayed = true
+        scheduleFlush(ref, flush_delay_policy.delay_for(
+          uow.actions.values.flatMap(_.enqueues.map(_.queueKey))))
       } else {
         enqueueFlush(uow)
       }
     }
   }
 
-  private def scheduleFlush(ref: WeakReference[DelayableUOW]) {
-    dispatchQueue.executeAfter(flushDelay, TimeUnit.MILLISECONDS, ^ {
+  private def scheduleFlush(ref: WeakReference[DelayableUOW], delay:Long) {
+    dispatchQueue.executeAfter(delay, TimeUnit.MILLISECONDS, ^ {
       val uow = ref.get();
       if (uow != null) {
         enqueueFlush(uow)
@@ -502,6 +513,9 @@ class DBManager(val parent:LevelDBStore) {
           action.enqueues.foreach { queue_entry=>
             val action = cancelable_enqueue_actions.remove(key(queue_entry))
             assert(action!=null)
+            if( uow.delayed ) {
+              flush_delay_policy.flushed(queue_entry.queueKey)
+            }
           }
         }
         Some(uow)
@@ -512,14 +526,17 @@ class DBManager(val parent:LevelDBStore) {
       uowStoringCounter += uows.size
       flushSource.suspend
       writeExecutor {
-        client.store(uows)
+        val syncNeeded = client.store(uows)
         flushSource.resume
-        dispatchQueue {
-          uowStoredCounter += uows.size
-          uows.foreach { uow=>
-            uow.onCompleted
+        client.whenSynced(syncNeeded) {
+          dispatchQueue {
+            uowStoredCounter += uows.size
+            uows.foreach { uow=>
+              uow.onCompleted
+            }
           }
         }
+        client.checkpointIfNeeded
       }
     }
   }
@@ -533,9 +550,22 @@ class DBManager(val parent:LevelDBStore) {
     dispatchQueue.sync {
       started = true
       pollGc
+      if( parent.compactionThreshold > 0 ) {
+        pollCompaction
+      }
       if(parent.monitorStats) {
         monitorStats
       }
+      if( parent.latencyReportFile!=null ) {
+        latency_reporter = new LatencyReporter(parent.latencyReportFile, Seq(
+          "uow_complete"->uow_complete_latency,
+          "index_write"->client.max_index_write_latency,
+          "log_write"->client.log.max_log_write_latency,
+          "log_flush"->client.log.max_log_flush_latency,
+          "log_rotate"->client.log.max_log_rotate_latency
+        ))
+        pollLatencyReport
+      }
     }
   }
 
@@ -552,12 +582,47 @@ class DBManager(val parent:LevelDBStore) {
       writeExecutor {
         if( started ) {
           client.gc(positions)
+          client.checkpointIfNeeded
           pollGc
         }
       }
     }
   }
 
+  def pollCompaction:Unit = dispatchQueue.after(parent.compactionInterval, TimeUnit.MILLISECONDS) {
+    if( started ) {
+      // Compaction can take a while, so it runs on it's own thread.
+      LevelDBClient.THREAD_POOL {
+        try {
+          client.compact(parent.compactionThreshold, parent.compactionRate)
+        } catch {
+          case e:Throwable =>
+            if( started ) {
+              LevelDBClient.warn(e, "Log compaction failed: "+e)
+            }
+        }
+        pollCompaction
+      }
+    }
+  }
+
+  var latency_reporter:LatencyReporter = _
+
+  def pollLatencyReport:Unit = dispatchQueue.after(parent.latencyReportInterval, TimeUnit.MILLISECONDS) {
+    if( started ) {
+      // Keep the file IO off the dispatch queue.
+      LevelDBClient.THREAD_POOL {
+        try {
+          latency_reporter.report
+        } catch {
+          case e:Throwable =>
+            LevelDBClient.warn(e, "Could not write the latency report: "+e)
+        }
+        pollLatencyReport
+      }
+    }
+  }
+
   def monitorStats:Unit = dispatchQueue.after(1, TimeUnit.SECONDS) {
     if( started ) {
       println(("committed: %d, canceled: %d, storing: %d, stored: %d, " +
@@ -613,20 +678,47 @@ class DBManager(val parent:LevelDBStore) {
     client.collectionIsEmpty(key)
   }
   
-  def cursorMessages(key:Long, listener:MessageRecoveryListener, startPos:Long) = {
+  def cursorMessages(key:Long, listener:MessageRecoveryListener, startPos:Long, max:Int=Int.MaxValue) = {
     var nextPos = startPos;
-    client.queueCursor(key, nextPos) { msg =>
+    val batch_size = max.min(LevelDBClient.CURSOR_BATCH_SIZE)
+    client.queueCursor(key, nextPos, batch_size) { msg =>
       if( listener.hasSpace ) {
         listener.recoverMessage(msg)
-        nextPos += 1
-        true
+        nextPos = queuePosition(msg.getMessageId)+1
+        // Stop before the cursor loads another batch we don't have room for.
+        listener.hasSpace
       } else {
         false
       }
     }
+    if( parent.cursorPrefetch && !listener.hasSpace ) {
+      prefetch(key, nextPos, batch_size)
+    }
     nextPos
   }
 
+  val prefetching = new ConcurrentHashMap[Long, java.lang.Boolean]()
+
+  /**
+   * Loads the next batch of a cursor in the background so that it's
+   * ready by the time the cursor asks for it.
+   */
+  def prefetch(key:Long, startPos:Long, batch_size:Int) = {
+    if( prefetching.putIfAbsent(key, java.lang.Boolean.TRUE)==null ) {
+      LevelDBClient.THREAD_POOL.execute(new Runnable() {
+        def run() {
+          try {
+            client.prefetchQueue(key, startPos, batch_size)
+          } catch {
+            case e:Throwable => LevelDBClient.debug(e, "Cursor prefetch failed: "+e)
+          } finally {
+            prefetching.remove(key)
+          }
+        }
+      })
+    }
+  }
+
   def queuePosition(id: MessageId):Long = {
     id.getEntryLocator.asInstanceOf[(Long, Long)]._2
   }
@@ -635,6 +727,7 @@ class DBManager(val parent:LevelDBStore) {
     parent.createQueueMessageStore(dest, createStore(dest, QUEUE_COLLECTION_TYPE))
   }
   def destroyQueueStore(key:Long) = writeExecutor.sync {
+      flush_delay_policy.remove(key)
       client.removeCollection(key)
   }
 
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb
+
+import java.util.concurrent.ConcurrentHashMap
+
+object FlushDelayPolicy {
+  // The shortest delay the adaptive policy picks.  It's never 0 so that
+  // we keep seeing how quickly the consumers dequeue.
+  final val MIN_DELAY = 10L
+  // How many delayed enqueues of a destination get looked at before its
+  // delay is adjusted.
+  final val WINDOW = 100
+  // Below this fraction of canceled enqueues delaying is not worth the
+  // memory it holds on to.
+  final val LOW_HIT_RATE = 0.1
+  // The weight of a new sample in the dequeue latency average.
+  final val LATENCY_WEIGHT = 0.1
+  // After this many low hit rate windows at the shortest delay, a window
+  // gets delayed by the full flushDelay to see if the consumers caught up.
+  final val PROBE_INTERVAL = 10
+}
+
+/**
+ * <p>
+ * Tracks, per destination, how long it takes for enqueues to get
+ * dequeued and how many of the delayed enqueues get canceled out by a
+ * dequeue before they are flushed.  When adaptive, it uses those
+ * numbers to pick how long the units of work that enqueue to the
+ * destination are delayed, never longer than the store's flushDelay.
+ * </p>
+ * <p>
+ * Updates happen on the DBManager's dispatch queue.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class FlushDelayPolicy(manager:DBManager) {
+  import FlushDelayPolicy._
+
+  class DestinationStats {
+    @volatile var delay = max_delay
+    // A moving average of the time (in ms) it took to dequeue the
+    // canceled enqueues.
+    @volatile var latency = 0.0
+    @volatile var canceled = 0L
+    @volatile var flushed = 0L
+    var window_canceled = 0
+    var window_flushed = 0
+    // How many windows in a row had a low hit rate at the shortest delay.
+    var low_windows = 0
+
+    def hit_rate = {
+      val total = canceled + flushed
+      if( total == 0 ) 0.0 else canceled * 100.0 / total
+    }
+  }
+
+  val destinations = new ConcurrentHashMap[Long, DestinationStats]()
+
+  def adaptive = manager.parent.adaptiveFlushDelay
+  def max_delay = manager.flushDelay.toLong
+  def min_delay = MIN_DELAY.min(max_delay)
+
+  private def stats(key:Long) = {
+    var rc = destinations.get(key)
+    if( rc == null ) {
+      rc = new DestinationStats
+      destinations.put(key, rc)
+    }
+    rc
+  }
+
+  /**
+   * A delayed enqueue to the destination got canceled out by a dequeue latency
+   * nanoseconds after its unit of work was closed.
+   */
+  def canceled(key:Long, latency:Long) = {
+    val s = stats(key)
+    s.canceled += 1
+    s.window_canceled += 1
+    if( latency > 0 ) {
+      s.latency += ((latency / 1000000.0) - s.latency) * LATENCY_WEIGHT
+    }
+    adjust(s)
+  }
+
+  /**
+   * A delayed enqueue to the destination got flushed to the store.
+   */
+  def flushed(key:Long) = {
+    val s = stats(key)
+    s.flushed += 1
+    s.window_flushed += 1
+    adjust(s)
+  }
+
+  private def adjust(s:DestinationStats) = {
+    if( s.window_canceled + s.window_flushed >= WINDOW ) {
+      val hit_rate = s.window_canceled.toDouble / (s.window_canceled + s.window_flushed)
+      s.low_windows = if( hit_rate < LOW_HIT_RATE && s.delay <= min_delay ) s.low_windows + 1 else 0
+      s.delay = if( s.low_windows >= PROBE_INTERVAL ) {
+        // Consumers slower than the shortest delay never cancel anything
+        // out, so we have to probe to find out when they catch up.
+        s.low_windows = 0
+        max_delay
+      } else if( hit_rate < LOW_HIT_RATE ) {
+        // The consumers are not keeping up, delaying just holds on to memory.
+        s.delay / 2
+      } else if( s.latency > s.delay / 2 ) {
+        // The dequeues are coming in close to the deadline, wait longer
+        // so we cancel out more of them.
+        s.delay * 2
+      } else {
+        // Leave some head room over the typical dequeue latency.
+        (s.latency * 4).toLong
+      }
+      s.delay = s.delay.max(min_delay).min(max_delay)
+      s.window_canceled = 0
+      s.window_flushed = 0
+    }
+  }
+
+  /**
+   * How long to delay a unit of work which enqueues to the destinations.
+   */
+  def delay_for(keys:Iterable[Long]):Long = {
+    if( !adaptive ) {
+      max_delay
+    } else if( manager.asyncCapacityRemaining.get < manager.parent.asyncBufferSize / 4 ) {
+      // Running low on memory for async units of work, flush them quickly.
+      min_delay
+    } else {
+      keys.foldLeft(min_delay) { (rc, key) =>
+        val s = destinations.get(key)
+        rc.max(if( s == null ) max_delay else s.delay)
+      }
+    }
+  }
+
+  def remove(key:Long) = destinations.remove(key)
+
+  def canceled_total = {
+    import collection.JavaConversions._
+    destinations.values.map(_.canceled).sum
+  }
+
+  def flushed_total = {
+    import collection.JavaConversions._
+    destinations.values.map(_.flushed).sum
+  }
+
+}
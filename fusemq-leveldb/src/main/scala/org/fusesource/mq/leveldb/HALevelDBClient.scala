@@ -23,10 +23,13 @@ import org.fusesource.leveldbjni.internal.Util
 import FileSupport._
 import org.codehaus.jackson.map.ObjectMapper
 import java.io._
+import java.nio.ByteBuffer
 import scala.collection.mutable._
 import scala.collection.immutable.TreeMap
 import org.fusesource.hawtbuf.{ByteArrayOutputStream, Buffer}
-import org.apache.hadoop.fs.{FileSystem, Path}
+import org.apache.hadoop.fs.{FSDataInputStream, FSDataOutputStream, FileStatus, FileSystem, Path}
+import java.util.concurrent._
+import java.{util=>ju}
 
 /**
  *
@@ -73,12 +76,32 @@ object JsonCodec {
 object HALevelDBClient extends Log {
 
   val MANIFEST_SUFFIX = ".mf"
+  val PART_SUFFIX = ".part"
+  val PIN_SUFFIX = ".pin"
   val LOG_SUFFIX = LevelDBClient.LOG_SUFFIX
   val INDEX_SUFFIX = LevelDBClient.INDEX_SUFFIX
 
 
+  val DOWNLOAD_BUFFER_SIZE = 1024*256
+  // How much of a partial download gets checked against the dfs before
+  // it's resumed.
+  val RESUME_CHECK_SIZE = 1024*4
+
   def create_sequence_path(directory:Path, id:Long, suffix:String) = new Path(directory, ("%016x%s".format(id, suffix)))
 
+  // Index files get stored on the dfs prefixed /w the id of the snapshot
+  // which uploaded them since the same file name can hold different data
+  // in another snapshot.
+  def remote_index_name(snapshot_id:Long, name:String) = "%016x-%s".format(snapshot_id, name)
+
+  def local_index_name(name:String) = {
+    if( name.length > 17 && name.charAt(16)=='-' && name.take(16).forall(Character.digit(_, 16) >= 0) ) {
+      name.drop(17)
+    } else {
+      name
+    }
+  }
+
   def find_sequence_status(fs:FileSystem, directory:Path, suffix:String) = {
     TreeMap((fs.listStatus(directory).flatMap { f =>
       val name = f.getPath.getName
@@ -108,78 +131,245 @@ class HALevelDBClient(val store:HALevelDBStore) extends LevelDBClient(store) {
   case class Snapshot(current_manifest:String, files:Set[String])
   var snapshots = TreeMap[Long, Snapshot]()
 
-  // Eventually we will allow warm standby slaves to add references to old
-  // snapshots so that we don't delete them while they are in the process
-  // of downloading the snapshot.
+  // Warm standby slaves pin the snapshot they are downloading (see
+  // pinned_snapshots) so that we don't delete it from under them.
   var snapshotRefCounters = HashMap[Long, LongCounter]()
   var indexFileRefCounters = HashMap[String, LongCounter]()
+  // The dfs names of the index tables we can reuse in the next snapshot.
+  var uploadedIndexTables = HashMap[String, String]()
 
   def dfs = store.dfs
   def dfsDirectory = new Path(store.dfsDirectory)
   def dfsBlockSize = store.dfsBlockSize
   def dfsReplication = store.dfsReplication
   def remoteIndexPath = new Path(dfsDirectory, "index")
+  def remotePinPath = new Path(dfsDirectory, "pins")
+
+  def pin_path(snapshot_id:Long) = new Path(remotePinPath, "%016x.%s%s".format(snapshot_id, store.containerId, PIN_SUFFIX))
+
+  /**
+   * The ids of the snapshots which the standby slaves have pinned.
+   */
+  def pinned_snapshots:Set[Long] = {
+    if( !dfs.exists(remotePinPath) ) {
+      Set()
+    } else {
+      Set(dfs.listStatus(remotePinPath).flatMap { status =>
+        val name = status.getPath.getName
+        if( name.endsWith(PIN_SUFFIX) ) {
+          try {
+            Some(java.lang.Long.parseLong(name.takeWhile(_ != '.'), 16))
+          } catch {
+            case e:NumberFormatException => None
+          }
+        } else {
+          None
+        }
+      }:_*)
+    }
+  }
+
+  // Only the main log gets replicated to the dfs.
+  override def logStripeDirectories = {
+    if( store.logStripeDirectories!=null ) {
+      warn("Log striping is not supported by the HA store, ignoring the logStripeDirectories setting.")
+    }
+    Array[File]()
+  }
+
+  // Copies the log to the dfs in the background.
+  var shipper:LogShipper = _
+
+  override def replication_lag_bytes = Option(shipper).map(_.lag_bytes).getOrElse(0L)
+  override def replication_lag_time = Option(shipper).map(_.lag_time).getOrElse(0L)
+
+  var download_executor:ExecutorService = _
 
   override def start() = {
-    retry {
-      directory.mkdirs()
-      dfs.mkdirs(dfsDirectory)
-      downloadLogFiles
-      dfs.mkdirs(remoteIndexPath)
-      downloadIndexFiles
+    download_executor = Executors.newFixedThreadPool(store.dfsDownloadParallelism.max(1), new ThreadFactory() {
+      def newThread(r: Runnable) = {
+        val rc = new Thread(r, "LevelDB DFS download")
+        rc.setDaemon(true)
+        rc
+      }
+    })
+    try {
+      retry {
+        directory.mkdirs()
+        dfs.mkdirs(dfsDirectory)
+        dfs.mkdirs(remoteIndexPath)
+        dropStaleLocalFiles(find_sequence_status(dfs, dfsDirectory, LOG_SUFFIX))
+        downloadIndexFiles
+        downloadLogFiles(LevelDBClient.find_sequence_files(directory, INDEX_SUFFIX).lastOption.map(_._1).getOrElse(0L))
+      }
+      shipper = new LogShipper("LevelDB DFS log shipper", store.dfsShipQueueSize)
+      super.start()
+    } finally {
+      download_executor.shutdownNow()
+      download_executor = null
     }
-    super.start()
     storeTrace("Master takeover by: "+store.containerId, true)
   }
 
+  override def stop() = {
+    super.stop()
+    // Ships whatever is still queued up.
+    if( shipper!=null ) {
+      shipper.stop
+      shipper = null
+    }
+  }
+
   override def locked_purge = {
     super.locked_purge
     dfs.delete(dfsDirectory, true)
   }
 
   override def snapshotIndex(sync: Boolean) = {
-    val previous_snapshot = lastIndexSnapshotPos
     super.snapshotIndex(sync)
+    // The snapshot refers to log data that has to reach the dfs first.
+    shipper.sync {}
     // upload the snapshot to the dfs
     uploadIndexFiles(lastIndexSnapshotPos)
 
-    // Drop the previous snapshot reference..
-    for( counter <- snapshotRefCounters.get(previous_snapshot)) {
-      if( counter.decrementAndGet() <= 0 ) {
-        snapshotRefCounters.remove(previous_snapshot)
+    // Drop the older snapshot references once the new one is on the dfs,
+    // we might have started from a local snapshot so that's not always
+    // just the previous one.
+    if( snapshots.contains(lastIndexSnapshotPos) ) {
+      for( id <- snapshotRefCounters.keys.toList ; if id < lastIndexSnapshotPos ) {
+        snapshotRefCounters.remove(id)
       }
     }
     gcSnapshotRefs
   }
 
-  // downloads missing log files...
-  def downloadLogFiles {
+  /**
+   * Deletes the local log files which are not on the dfs and the local
+   * index snapshots which were taken from log data that did not make it
+   * to the dfs, like what an earlier master never got to ship before
+   * another one took over.
+   */
+  def dropStaleLocalFiles(log_files:TreeMap[Long, FileStatus]) = {
+    val local_logs = LevelDBClient.find_sequence_files(directory, LOG_SUFFIX)
+    for( (id, dir) <- LevelDBClient.find_sequence_files(directory, INDEX_SUFFIX) ) {
+      // The log the snapshot ends in must still be the one holding that
+      // position on the dfs.
+      val valid = local_logs.to(id).lastOption match {
+        case Some((log_id, _)) => log_files.contains(log_id) && log_files.range(log_id+1, id).isEmpty
+        case None => false
+      }
+      if( !valid ) {
+        info("Deleting local index snapshot which does not match the dfs: %s", dir.getName)
+        dir.recursiveDelete
+      }
+    }
+    for( (id, file) <- local_logs ; if !log_files.contains(id) ) {
+      info("Deleting local log file which is not on the dfs: %s", file.getName)
+      file.delete()
+    }
+  }
+
+  // Log files older than the index snapshot which are still being
+  // downloaded while replay runs: (position, target, length, download).
+  var log_downloads = List[(Long, File, Long, Future[File])]()
+
+  // downloads missing log files, the newest ones first.  Replay only needs
+  // the ones from the index snapshot on, so the older ones keep
+  // downloading in the background until awaitLogFiles.
+  def downloadLogFiles(snapshot_id:Long) {
     val log_files = find_sequence_status(dfs, dfsDirectory, LOG_SUFFIX)
-    val downloads = log_files.flatMap( _ match {
+    val downloads = log_files.toSeq.reverse.flatMap( _ match {
       case (id, status) =>
         val target = LevelDBClient.create_sequence_file(directory, id, LOG_SUFFIX)
         // is it missing or does the size not match?
         if (!target.exists() || target.length() != status.getLen) {
-          Some((id, status))
+          Some((id, target, status))
         } else {
           None
         }
     })
-    if( !downloads.isEmpty ) {
-      val total_size = downloads.foldLeft(0L)((a,x)=> a+x._2.getLen)
-      downloads.foreach {
-        case (id, status) =>
-          val target = LevelDBClient.create_sequence_file(directory, id, LOG_SUFFIX)
-          // is it missing or does the size not match?
-          if (!target.exists() || target.length() != status.getLen) {
-            info("Downloading log file: "+status.getPath.getName)
-            using(dfs.open(status.getPath, 32*1024)) { is=>
-              using(new FileOutputStream(target)) { os=>
-                copy(is, os)
-              }
-            }
+    // The log holding the snapshot position and the ones after it.
+    val replay_start = log_files.keys.filter(_ <= snapshot_id).lastOption.getOrElse(0L)
+    val (needed, older) = downloads.partition(_._1 >= replay_start)
+    await(needed.map { case (id, target, status) =>
+      download_executor.submit(download(status, target))
+    })
+    log_downloads = older.toList.map { case (id, target, status) =>
+      // It's older than the snapshot so it ends where the next log starts.
+      val length = log_files.from(id+1).headOption.map(_._1 - id).getOrElse(status.getLen)
+      (id, target, length, download_executor.submit(download(status, target)))
+    }
+  }
+
+  override def awaitLogFiles = {
+    await(log_downloads.map(_._4))
+    log_downloads.foreach { case (id, target, _, _) =>
+      log.add_log_file(id, target)
+    }
+    log_downloads = Nil
+  }
+
+  def await[T](futures:collection.Seq[Future[T]]) = {
+    futures.map { future =>
+      try {
+        future.get
+      } catch {
+        case e:ExecutionException => throw e.getCause
+      }
+    }
+  }
+
+  /**
+   * Returns a task that downloads the dfs file to the target.  It
+   * downloads into a part file first, a part file left behind by an
+   * earlier attempt or a target shorter than the dfs file gets resumed
+   * if it's tail still matches the dfs file.
+   */
+  def download(status:FileStatus, target:File) = new Callable[File] {
+    def call = {
+      val part = new File(target.getParentFile, target.getName+PART_SUFFIX)
+      if( !part.exists && target.exists && target.length < status.getLen ) {
+        target.renameTo(part)
+      }
+      using(dfs.open(status.getPath, DOWNLOAD_BUFFER_SIZE)) { is =>
+        using(new RandomAccessFile(part, "rw")) { os =>
+          val offset = resume_offset(is, os, status.getLen)
+          if( offset > 0 ) {
+            info("Resuming download of %s at %d", status.getPath.getName, offset)
+          } else {
+            info("Downloading: %s", status.getPath.getName)
+          }
+          os.setLength(offset)
+          os.seek(offset)
+          is.seek(offset)
+          val buffer = new Array[Byte](DOWNLOAD_BUFFER_SIZE)
+          var count = is.read(buffer)
+          while( count > 0 ) {
+            os.write(buffer, 0, count)
+            count = is.read(buffer)
           }
+        }
+      }
+      target.delete()
+      if( !part.renameTo(target) ) {
+        throw new IOException("Could not rename "+part+" to "+target)
       }
+      target
+    }
+  }
+
+  private def resume_offset(is:FSDataInputStream, os:RandomAccessFile, length:Long):Long = {
+    val offset = os.length
+    if( offset == 0 || offset > length ) {
+      0L
+    } else {
+      val check = offset.min(RESUME_CHECK_SIZE).toInt
+      val expected = new Array[Byte](check)
+      val actual = new Array[Byte](check)
+      is.readFully(offset-check, expected)
+      os.seek(offset-check)
+      os.readFully(actual)
+      if( ju.Arrays.equals(expected, actual) ) offset else 0L
     }
   }
 
@@ -191,12 +381,7 @@ class HALevelDBClient(val store:HALevelDBStore) extends LevelDBClient(store) {
       val name = status.getPath.getName
       indexFileRefCounters.put(name, new LongCounter())
       if( name endsWith MANIFEST_SUFFIX ) {
-        info("Getting index snapshot manifest: "+status.getPath.getName)
-        val mf = using(dfs.open(status.getPath)) { is =>
-          JsonCodec.decode(is, classOf[IndexManifestDTO])
-        }
-        import collection.JavaConversions._
-        snapshots += mf.snapshot_id -> Snapshot(mf.current_manifest, Set(mf.files.toSeq:_*))
+        snapshots += readManifest(status.getPath)
       }
     }
 
@@ -217,7 +402,7 @@ class HALevelDBClient(val store:HALevelDBStore) extends LevelDBClient(store) {
     }
     
     // Increment index file refs..
-    for( key <- snapshotRefCounters.keys; snapshot <- snapshots.get(key); file <- snapshot.files ) {
+    for( key <- snapshotRefCounters.keySet ++ pinned_snapshots; snapshot <- snapshots.get(key); file <- snapshot.files ) {
       indexFileRefCounters.getOrElseUpdate(file, new LongCounter()).incrementAndGet()
     }
 
@@ -231,49 +416,82 @@ class HALevelDBClient(val store:HALevelDBStore) extends LevelDBClient(store) {
       }
     }
 
-    val local_snapshots = Map(LevelDBClient.find_sequence_files(directory, INDEX_SUFFIX).values.flatten { dir =>
-      if( dir.isDirectory ) dir.listFiles() else Array[File]()
-    }.map(x=> (x.getName, x)).toSeq:_*)
-
+    uploadedIndexTables.clear()
     for( (id, snapshot) <- snapshots.lastOption ) {
+      val local_snapshot = LevelDBClient.find_sequence_files(directory, INDEX_SUFFIX).lastOption.map(_._1)
+      if( local_snapshot.exists(_ >= id) ) {
+        // A warm standby already replayed past it.
+        info("Using the local index snapshot: %016x", local_snapshot.get)
+      } else {
+        downloadSnapshot(id, snapshot, download_executor)
+        for( file <- snapshot.files ; if LevelDBClient.is_index_table(file) ) {
+          uploadedIndexTables.put(local_index_name(file), file)
+        }
+      }
+    }
+
+    gcSnapshotRefs
+  }
 
-      // increment the ref..
-      tempIndexFile.recursiveDelete
-      tempIndexFile.mkdirs
+  def readManifest(path:Path) = {
+    info("Getting index snapshot manifest: "+path.getName)
+    val mf = using(dfs.open(path)) { is =>
+      JsonCodec.decode(is, classOf[IndexManifestDTO])
+    }
+    import collection.JavaConversions._
+    mf.snapshot_id -> Snapshot(mf.current_manifest, Set(mf.files.toSeq:_*))
+  }
 
-      for( file <- snapshot.files ; if !file.endsWith(MANIFEST_SUFFIX) ) {
-        val target = tempIndexFile / file
+  /**
+   * Downloads the index snapshot into the local directory, reusing the
+   * files which are in the local snapshots already.
+   */
+  def downloadSnapshot(id:Long, snapshot:Snapshot, executor:ExecutorService) = {
+    val local_snapshots = Map(LevelDBClient.find_sequence_files(directory, INDEX_SUFFIX).values.flatten { dir =>
+      if( dir.isDirectory ) dir.listFiles() else Array[File]()
+    }.map(x=> (x.getName, x)).toSeq:_*)
 
-        // The file might be in a local snapshot already..
-        local_snapshots.get(file) match {
-          case Some(f) =>
-            // had it locally.. link it.
+    val names = snapshot.files.map(local_index_name(_))
+    // Keep what an earlier attempt downloaded so it can be resumed.
+    tempIndexFile.mkdirs
+    tempIndexFile.listFiles.filterNot { file =>
+      names.contains(file.getName.stripSuffix(PART_SUFFIX))
+    }.foreach(_.recursiveDelete)
+
+    val downloads = for( file <- snapshot.files.toSeq ; if !file.endsWith(MANIFEST_SUFFIX) ) yield {
+      val status = dfs.getFileStatus(new Path(remoteIndexPath, file))
+      val name = local_index_name(file)
+      val target = tempIndexFile / name
+
+      // The table might be in a local snapshot already..
+      local_snapshots.get(name).filter(x=> LevelDBClient.is_index_table(name) && x.length == status.getLen) match {
+        case Some(f) =>
+          // had it locally.. link it.
+          if( !target.exists ) {
             Util.link(f, target)
-          case None =>
-            // download..
-            var path = new Path(remoteIndexPath, file)
-            info("Downloading index file: "+path)
-            using(dfs.open(path, 32*1024)) { is=>
-              using(new FileOutputStream(target)) { os=>
-                copy(is, os)
-              }
-            }
-        }
+          }
+          None
+        case None if target.exists && target.length == status.getLen =>
+          // an earlier attempt downloaded it.
+          None
+        case None =>
+          // download..
+          Some(executor.submit(download(status, target)))
       }
-
-      val current = tempIndexFile / "CURRENT"
-      current.writeText(snapshot.current_manifest)
-
-      // We got everything ok, now rename.
-      tempIndexFile.renameTo(LevelDBClient.create_sequence_file(directory, id, INDEX_SUFFIX))
     }
+    await(downloads.flatten)
 
-    gcSnapshotRefs
+    val current = tempIndexFile / "CURRENT"
+    current.writeText(snapshot.current_manifest)
+
+    // We got everything ok, now rename.
+    tempIndexFile.renameTo(LevelDBClient.create_sequence_file(directory, id, INDEX_SUFFIX))
   }
 
   def gcSnapshotRefs = {
+    val pinned = pinned_snapshots
     snapshots = snapshots.filter { case (id, snapshot)=>
-      if (snapshotRefCounters.get(id).isDefined) {
+      if (snapshotRefCounters.get(id).isDefined || pinned.contains(id)) {
         true
       } else {
         for( file <- snapshot.files ) {
@@ -283,6 +501,7 @@ class HALevelDBClient(val store:HALevelDBStore) extends LevelDBClient(store) {
               info("Deleteing unreferenced index file: %s", path.getName)
               dfs.delete(path, true)
               indexFileRefCounters.remove(file)
+              uploadedIndexTables.remove(local_index_name(file))
             }
           }
         }
@@ -303,25 +522,27 @@ class HALevelDBClient(val store:HALevelDBStore) extends LevelDBClient(store) {
       source.listFiles.foreach { file =>
         val name = file.getName
         if( name !="LOCK" && name !="CURRENT") {
-          mf.files.add(name)
-        }
-      }
-
-      import collection.JavaConversions._
-      mf.files.foreach { file =>
-        val refs = indexFileRefCounters.getOrElseUpdate(file, new LongCounter())
-        if(refs.get()==0) {
-          // Upload if not not yet on the remote.
-          val target = new Path(remoteIndexPath, file)
-          using(new FileInputStream(source / file)) { is=>
-            using(dfs.create(target, true, 1024*32, dfsReplication.toShort, dfsBlockSize)) { os=>
-              copy(is, os)
+          // Only the tables we uploaded before can be reused.
+          val remote_name = uploadedIndexTables.get(name).getOrElse {
+            val remote_name = remote_index_name(snapshot_id, name)
+            val target = new Path(remoteIndexPath, remote_name)
+            using(new FileInputStream(file)) { is=>
+              using(dfs.create(target, true, 1024*32, dfsReplication.toShort, dfsBlockSize)) { os=>
+                copy(is, os)
+              }
             }
+            if( LevelDBClient.is_index_table(name) ) {
+              uploadedIndexTables.put(name, remote_name)
+            }
+            remote_name
           }
+          mf.files.add(remote_name)
+          indexFileRefCounters.getOrElseUpdate(remote_name, new LongCounter()).incrementAndGet()
         }
-        refs.incrementAndGet()
       }
 
+      import collection.JavaConversions._
+
       val target = create_sequence_path(remoteIndexPath, mf.snapshot_id, MANIFEST_SUFFIX)
       mf.files.add(target.getName)
 
@@ -345,50 +566,74 @@ class HALevelDBClient(val store:HALevelDBStore) extends LevelDBClient(store) {
   // stores the logs on the local and remote file systems.
   override def createLog = new RecordLog(directory, LOG_SUFFIX) {
 
+    override def open = {
+      super.open
+      // Account for the logs still being downloaded so that the log refs
+      // replay updates in them still count.  awaitLogFiles fills in the
+      // rest once they are here.
+      log_mutex.synchronized {
+        log_downloads.foreach { case (id, target, length, _) =>
+          put_log_info(RecordLog.LogInfo(target, id, length))
+        }
+      }
+    }
+
 
     override protected def onDelete(file: File) = {
-      super.onDelete(file)
-      // also delete the file on the dfs.
-      dfs.delete(new Path(dfsDirectory, file.getName), false)
+      val rc = super.onDelete(file)
+      // also delete the file on the dfs once it's been shipped.
+      shipper.execute {
+        dfs.delete(new Path(dfsDirectory, file.getName), false)
+      }
+      rc
     }
 
     override def create_log_appender(position: Long) = {
       new LogAppender(next_log(position), position) {
 
         val dfs_path = new Path(dfsDirectory, file.getName)
-        debug("Opening DFS log file for append: "+dfs_path.getName)
-        val dfs_os = dfs.create(dfs_path, true, RecordLog.BUFFER_SIZE, dfsReplication.toShort, dfsBlockSize )
-        debug("Opened")
-
-        override def flush = this.synchronized {
-          if( write_buffer.position() > 0 ) {
-
-            var buffer: Buffer = write_buffer.toBuffer
-            // Write it to DFS..
-            buffer.writeTo(dfs_os.asInstanceOf[OutputStream]);
-
-            // Now write it to the local FS.
-            val byte_buffer = buffer.toByteBuffer
-            val pos = append_offset-byte_buffer.remaining
-            flushed_offset.addAndGet(byte_buffer.remaining)
-            channel.write(byte_buffer, pos)
-            if( byte_buffer.hasRemaining ) {
-              throw new IOException("Short write")
-            }
+        // Only used from the shipper thread.
+        var dfs_os:FSDataOutputStream = _
 
-            write_buffer.reset()
+        shipper.execute {
+          debug("Opening DFS log file for append: "+dfs_path.getName)
+          dfs_os = dfs.create(dfs_path, true, RecordLog.BUFFER_SIZE, dfsReplication.toShort, dfsBlockSize )
+          debug("Opened")
+        }
+
+        override protected def write_file(buffers: Array[ByteBuffer], file_offset: Long) = {
+          // The buffers get reused once we return so ship a copy.
+          val data = new Array[Byte](buffers.foldLeft(0)(_ + _.remaining))
+          var pos = 0
+          buffers.foreach { buffer =>
+            val length = buffer.remaining
+            buffer.duplicate().get(data, pos, length)
+            pos += length
+          }
+          shipper.ship(data.length) {
+            dfs_os.write(data)
           }
+          // The local write does not wait for the DFS.
+          super.write_file(buffers, file_offset)
         }
 
-        override def force = {
-          dfs_os.sync()
+        override def force_flushed = {
+          if( store.dfsSyncOnForce ) {
+            shipper.sync {
+              dfs_os.sync()
+            }
+          } else {
+            super.force_flushed
+          }
         }
 
         override def dispose() = {
           try {
             super.dispose()
           } finally {
-            dfs_os.close()
+            shipper.execute {
+              dfs_os.close()
+            }
           }
         }
 
@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mq.leveldb
+
+import org.fusesource.mq.leveldb.util._
+
+import FileSupport._
+import java.util.concurrent._
+
+object HALevelDBStandby extends Log
+
+/**
+ * <p>
+ * Keeps the local directory of a HA slave warm.  It follows the log files
+ * the master writes to the dfs and periodically replays the new log data
+ * into a local index snapshot, so on a takeover only the log data written
+ * since the last replay has to be downloaded and replayed.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class HALevelDBStandby(val store:HALevelDBStore) {
+  import HALevelDBStandby._
+  import HALevelDBClient.{find_sequence_status, LOG_SUFFIX, INDEX_SUFFIX, MANIFEST_SUFFIX}
+
+  val client = store.db.client.asInstanceOf[HALevelDBClient]
+  def directory = store.directory
+  def dfs = store.dfs
+
+  @volatile
+  var stopped = false
+  var thread:Thread = _
+  var executor:ExecutorService = _
+
+  // How far the local index has been replayed.
+  @volatile
+  var replayed_position = 0L
+
+  def start = {
+    executor = Executors.newFixedThreadPool(store.dfsDownloadParallelism.max(1), new ThreadFactory() {
+      def newThread(r: Runnable) = {
+        val rc = new Thread(r, "LevelDB standby download")
+        rc.setDaemon(true)
+        rc
+      }
+    })
+    thread = new Thread("LevelDB standby") {
+      override def run = follow
+    }
+    thread.setDaemon(true)
+    thread.start
+  }
+
+  def stop = {
+    this.synchronized {
+      stopped = true
+      notifyAll()
+    }
+    thread.join()
+    executor.shutdownNow()
+  }
+
+  private def follow:Unit = {
+    directory.mkdirs()
+    var first = true
+    while( !stopped ) {
+      try {
+        val log_files = find_sequence_status(dfs, client.dfsDirectory, LOG_SUFFIX)
+        if( first ) {
+          // We might have been the master at some point.
+          client.dropStaleLocalFiles(log_files)
+          first = false
+        }
+        if( !replayable(log_files) ) {
+          downloadSnapshot
+        }
+        if( syncLogFiles(log_files) ) {
+          replay
+        }
+      } catch {
+        case e:Throwable =>
+          warn(e, "Standby could not follow the dfs: "+e)
+      }
+      this.synchronized {
+        if( !stopped ) {
+          wait(store.standbyInterval)
+        }
+      }
+    }
+  }
+
+  /**
+   * Can the local index be brought up to date from the logs on the dfs?
+   */
+  private def replayable(log_files:collection.SortedMap[Long, _]) = {
+    val position = LevelDBClient.find_sequence_files(directory, INDEX_SUFFIX).lastOption.map(_._1).getOrElse(0L)
+    log_files.isEmpty || log_files.to(position).lastOption.isDefined
+  }
+
+  /**
+   * Downloads the latest index snapshot of the master.  It's pinned while
+   * we download it so that the master does not delete it.
+   */
+  private def downloadSnapshot = {
+    val manifests = find_sequence_status(dfs, client.remoteIndexPath, MANIFEST_SUFFIX)
+    for( (id, status) <- manifests.lastOption ) {
+      val pin = client.pin_path(id)
+      using(dfs.create(pin, true)) { os => }
+      try {
+        // It could have been deleted before it got pinned.
+        if( dfs.exists(status.getPath) ) {
+          val (_, snapshot) = client.readManifest(status.getPath)
+          // The local snapshots are no good to us anymore.
+          LevelDBClient.find_sequence_files(directory, INDEX_SUFFIX).foreach(_._2.recursiveDelete)
+          client.downloadSnapshot(id, snapshot, executor)
+          replayed_position = id
+        }
+      } finally {
+        dfs.delete(pin, false)
+      }
+    }
+  }
+
+  /**
+   * Makes the local log files match the dfs ones, returns true if any
+   * changed.
+   */
+  private def syncLogFiles(log_files:collection.SortedMap[Long, org.apache.hadoop.fs.FileStatus]) = {
+    var changed = false
+    // The master deleted these.
+    for( (id, file) <- LevelDBClient.find_sequence_files(directory, LOG_SUFFIX) ; if !log_files.contains(id) ) {
+      debug("Deleting log file: %s", file.getName)
+      file.delete()
+      changed = true
+    }
+    val downloads = log_files.toSeq.flatMap { case (id, status) =>
+      val target = LevelDBClient.create_sequence_file(directory, id, LOG_SUFFIX)
+      // The dfs only ever appends to the logs, so a shorter local file
+      // gets resumed.
+      if( !target.exists() || target.length() < status.getLen ) {
+        Some(executor.submit(client.download(status, target)))
+      } else {
+        None
+      }
+    }
+    client.await(downloads)
+    changed || !downloads.isEmpty
+  }
+
+  /**
+   * Replays the new log data into a new local index snapshot.
+   */
+  private def replay = {
+    replayed_position = LevelDBClient.replay_logs(store, directory)
+    debug("Replayed the dfs logs up to: %d", replayed_position)
+  }
+
+}
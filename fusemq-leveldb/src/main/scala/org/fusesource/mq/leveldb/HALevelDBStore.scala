@@ -43,10 +43,56 @@ class HALevelDBStore extends LevelDBStore {
   var dfsReplication = 1
   @BeanProperty
   var containerId:String = _
+  // How many bytes of log data can be waiting to be shipped to the dfs
+  // before the log writes block.
+  @BeanProperty
+  var dfsShipQueueSize = 1024*1024*16L
+  // Does a log sync wait for the dfs to sync, otherwise just the local
+  // log gets synced and the dfs lags behind.
+  @BeanProperty
+  var dfsSyncOnForce = true
+  // How many files get downloaded from the dfs at once on a takeover.
+  @BeanProperty
+  var dfsDownloadParallelism = 4
+
+  // How often (in ms) a warm standby checks the dfs for new log data.
+  @BeanProperty
+  var standbyInterval = 5000L
 
   var dfs:FileSystem = _
+  var standby:HALevelDBStandby = _
+
+  /**
+   * Starts following the log files and index snapshots the master is
+   * writing to the dfs so that this store can take over quickly.  The
+   * standby gets stopped when the store is started.
+   */
+  def startStandby = this.synchronized {
+    if( isStarted ) {
+      throw new IllegalStateException("The store is already started.")
+    }
+    if( standby==null ) {
+      openDfs
+      configureLogCompression
+      standby = new HALevelDBStandby(this)
+      standby.start
+    }
+  }
+
+  def stopStandby = this.synchronized {
+    if( standby!=null ) {
+      standby.stop
+      standby = null
+    }
+  }
 
   override def doStart = {
+    stopStandby
+    openDfs
+    super.doStart
+  }
+
+  def openDfs = {
     if(dfs==null) {
       Thread.currentThread().setContextClassLoader(getClass.getClassLoader)
       val config = new Configuration()
@@ -60,7 +106,6 @@ class HALevelDBStore extends LevelDBStore {
     if ( containerId==null ) {
       containerId = InetAddress.getLocalHost.getHostName
     }
-    super.doStart
   }
 
   override def doStop(stopper: ServiceStopper): Unit = {
@@ -22,7 +22,7 @@ import java.{util=>ju}
 
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import collection.immutable.TreeMap
-import collection.mutable.{HashMap, ListBuffer}
+import collection.mutable.ListBuffer
 import org.iq80.leveldb._
 
 import org.fusesource.hawtdispatch._
@@ -44,7 +44,17 @@ import java.util.{Date, Collections}
 object LevelDBClient extends Log {
 
   final val STORE_SCHEMA_PREFIX = "activemq_leveldb_store:"
-  final val STORE_SCHEMA_VERSION = 1
+  final val STORE_SCHEMA_VERSION = 3
+
+  final val CURSOR_BATCH_SIZE = 1000
+
+  final val REPLAY_QUEUE_SIZE = 1024
+  final val REPLAY_BATCH_SIZE = 1024*4
+  final val REPLAY_REPORT_INTERVAL = 1000*5
+
+  final val COMPACTION_BATCH_SIZE = 1000
+
+  final val CHECKPOINT_ATTEMPTS = 5
 
   final val THREAD_POOL_STACK_SIZE = System.getProperty("leveldb.thread.stack.size", "" + 1024 * 512).toLong
   final val THREAD_POOL: ThreadPoolExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 10, TimeUnit.SECONDS, new SynchronousQueue[Runnable], new ThreadFactory {
@@ -69,6 +79,13 @@ object LevelDBClient extends Log {
   final val COLLECTION_PREFIX_ARRAY = Array(COLLECTION_PREFIX)
   final val ENTRY_PREFIX = 'e'.toByte
   final val ENTRY_PREFIX_ARRAY = Array(ENTRY_PREFIX)
+  final val LOG_REF_PREFIX = 'r'.toByte
+  final val LOG_REF_PREFIX_ARRAY = Array(LOG_REF_PREFIX)
+  final val COLLECTION_META_PREFIX = 'm'.toByte
+  final val COLLECTION_META_PREFIX_ARRAY = Array(COLLECTION_META_PREFIX)
+
+  // The version of the log ref and collection meta value encodings.
+  final val COUNTER_FORMAT_VERSION = 1.toByte
 
   final val LOG_ADD_COLLECTION      = 1.toByte
   final val LOG_REMOVE_COLLECTION   = 2.toByte
@@ -76,6 +93,16 @@ object LevelDBClient extends Log {
   final val LOG_REMOVE_ENTRY        = 4.toByte
   final val LOG_DATA                = 5.toByte
   final val LOG_TRACE               = 6.toByte
+  final val LOG_UPDATE_ENTRY        = 7.toByte
+  // Queue entry adds and removes packed as varints, see encodePackedEntry.
+  final val LOG_ADD_PACKED_ENTRY    = 8.toByte
+  final val LOG_REMOVE_PACKED_ENTRY = 9.toByte
+
+  // The log stripes number their positions from (stripe << 56) so that
+  // a data locator also identifies the log that holds it.  Stripe 0 is
+  // the main log.
+  final val STRIPE_POSITION_SHIFT = 56
+  def stripe_of(pos:Long) = (pos >>> STRIPE_POSITION_SHIFT).toInt
 
   final val LOG_SUFFIX  = ".log"
   final val INDEX_SUFFIX  = ".index"
@@ -91,85 +118,238 @@ object LevelDBClient extends Log {
   def encodeEntryRecord(v: EntryRecord.Buffer) = v.toUnframedBuffer
   def decodeEntryRecord(data: Buffer):EntryRecord.Buffer = EntryRecord.FACTORY.parseUnframed(data)
 
+  /**
+   * A queue entry add or remove as logged by the LOG_ADD_PACKED_ENTRY and
+   * LOG_REMOVE_PACKED_ENTRY records.  Removes log a 0 length.
+   */
+  case class PackedEntry(collection_key:Long, seq:Long, value_location:Long, value_length:Int)
+
+  def encodePackedEntry(collection_key:Long, seq:Long, value_location:Long, value_length:Int):Buffer = {
+    val out = new DataByteArrayOutputStream(
+      AbstractVarIntSupport.computeVarLongSize(collection_key) +
+      AbstractVarIntSupport.computeVarLongSize(seq) +
+      AbstractVarIntSupport.computeVarLongSize(value_location) +
+      AbstractVarIntSupport.computeVarIntSize(value_length)
+    )
+    out.writeVarLong(collection_key)
+    out.writeVarLong(seq)
+    out.writeVarLong(value_location)
+    out.writeVarInt(value_length)
+    out.toBuffer
+  }
+
+  /**
+   * Encodes the index value of a queue entry.
+   */
+  def encodeIndexEntry(value_location:Long, value_length:Int):Array[Byte] = {
+    val index_record = new EntryRecord.Bean()
+    index_record.setValueLocation(value_location)
+    index_record.setValueLength(value_length)
+    encodeEntryRecord(index_record.freeze()).toByteArray
+  }
+
+  def decodePackedEntry(data:Buffer):PackedEntry = {
+    val in = new DataByteArrayInputStream(data)
+    PackedEntry(in.readVarLong(), in.readVarLong(), in.readVarLong(), in.readVarInt())
+  }
+
   def encodeEntryKeyRecord(v: EntryKey.Buffer) = v.toUnframedByteArray
   def decodeEntryKeyRecord(data: Buffer):EntryKey.Buffer = EntryKey.FACTORY.parseUnframed(data)
 
   def encodeLocator(pos:Long, len:Int):Array[Byte] = {
+    val pos_size = AbstractVarIntSupport.computeVarLongSize(pos)
+    val rc = new Array[Byte](pos_size+AbstractVarIntSupport.computeVarLongSize(len))
+    putVarLong(rc, 0, pos)
+    putVarLong(rc, pos_size, len)
+    rc
+  }
+  def decodeLocator(bytes:Buffer):(Long,  Int) = decodeLocator(bytes.data, bytes.offset)
+  def decodeLocator(bytes:Array[Byte]):(Long,  Int) = decodeLocator(bytes, 0)
+  private def decodeLocator(bytes:Array[Byte], offset:Int):(Long,  Int) = {
+    val pos = getVarLong(bytes, offset)
+    (pos, getVarLong(bytes, offset+AbstractVarIntSupport.computeVarLongSize(pos)).toInt)
+  }
+
+  def encodeLogRef(count:Long):Array[Byte] = {
+    val out = new DataByteArrayOutputStream(1+AbstractVarIntSupport.computeVarLongSize(count))
+    out.writeByte(COUNTER_FORMAT_VERSION)
+    out.writeVarLong(count)
+    out.getData
+  }
+  def decodeLogRef(bytes:Array[Byte]):Long = {
+    val in = new DataByteArrayInputStream(bytes)
+    checkCounterFormat(in.readByte())
+    in.readVarLong()
+  }
+
+  // The last key is stored as a byte string.  Only the 8 byte sequence
+  // number keys are tracked, a 0 last_seq is stored without a key.
+  def encodeCollectionMeta(size:Long, last_seq:Long):Array[Byte] = {
+    val last_key_length = if( last_seq==0 ) 0 else 8
     val out = new DataByteArrayOutputStream(
-      AbstractVarIntSupport.computeVarLongSize(pos)+
-      AbstractVarIntSupport.computeVarIntSize(len)
+      1+AbstractVarIntSupport.computeVarLongSize(size)+
+      AbstractVarIntSupport.computeVarIntSize(last_key_length)+last_key_length
     )
-    out.writeVarLong(pos)
-    out.writeVarInt(len)
+    out.writeByte(COUNTER_FORMAT_VERSION)
+    out.writeVarLong(size)
+    out.writeVarInt(last_key_length)
+    if( last_key_length > 0 ) {
+      out.writeLong(last_seq)
+    }
     out.getData
   }
-  def decodeLocator(bytes:Buffer):(Long,  Int) = {
+  def decodeCollectionMeta(bytes:Array[Byte]):(Long, Long) = {
     val in = new DataByteArrayInputStream(bytes)
-    (in.readVarLong(), in.readVarInt())
+    checkCounterFormat(in.readByte())
+    val size = in.readVarLong()
+    val last_key_length = in.readVarInt()
+    val last_seq = if( last_key_length > 0 ) decodeLastSeq(in.readBuffer(last_key_length)) else 0L
+    (size, last_seq)
   }
-  def decodeLocator(bytes:Array[Byte]):(Long,  Int) = {
-    val in = new DataByteArrayInputStream(bytes)
-    (in.readVarLong(), in.readVarInt())
+
+  /**
+   * Durable subscriptions key their ack position entry with ACK_POSITION,
+   * only the 8 byte keys are sequence numbers.
+   */
+  def isSeqKey(key:Buffer) = key!=null && key.length == 8
+
+  def decodeLastSeq(last_key:Buffer):Long = {
+    if( isSeqKey(last_key) ) decodeLong(last_key) else 0L
   }
 
-  def encodeLong(a1:Long) = {
-    val out = new DataByteArrayOutputStream(8)
-    out.writeLong(a1)
-    out.toBuffer
+  private def checkCounterFormat(version:Byte) = {
+    if( version != COUNTER_FORMAT_VERSION ) {
+      throw new java.io.IOException("Unsupported store counter format: "+version)
+    }
   }
 
-  def encodeVLong(a1:Long):Array[Byte] = {
-    val out = new DataByteArrayOutputStream(
-      AbstractVarIntSupport.computeVarLongSize(a1)
-    )
-    out.writeVarLong(a1)
-    out.getData
+  // The keys and locators get encoded and decoded a few times for every
+  // message so they work on exactly sized arrays directly instead of
+  // going through the data streams.
+
+  private def putLong(bytes:Array[Byte], offset:Int, value:Long) = {
+    var i = 0
+    while( i < 8 ) {
+      bytes(offset+i) = (value >>> (56-(i*8))).toByte
+      i += 1
+    }
   }
 
-  def decodeVLong(bytes:Array[Byte]):Long = {
-    val in = new DataByteArrayInputStream(bytes)
-    in.readVarLong()
+  private def getLong(bytes:Array[Byte], offset:Int):Long = {
+    var rc = 0L
+    var i = 0
+    while( i < 8 ) {
+      rc = (rc << 8) | (bytes(offset+i) & 0xFF)
+      i += 1
+    }
+    rc
   }
 
-  def encodeLongKey(a1:Byte, a2:Long):Array[Byte] = {
-    val out = new DataByteArrayOutputStream(9)
-    out.writeByte(a1.toInt)
-    out.writeLong(a2)
-    out.getData
+  // Same encoding as the hawtbuf var ints.  Negative ints get sign
+  // extended so callers widen them to a long first.
+  private def putVarLong(bytes:Array[Byte], offset:Int, value:Long) = {
+    var v = value
+    var i = offset
+    while( (v & ~0x7FL) != 0 ) {
+      bytes(i) = ((v & 0x7F) | 0x80).toByte
+      v >>>= 7
+      i += 1
+    }
+    bytes(i) = v.toByte
   }
-  def decodeLongKey(bytes:Array[Byte]):(Byte, Long) = {
-    val in = new DataByteArrayInputStream(bytes)
-    (in.readByte(), in.readLong())
+
+  private def getVarLong(bytes:Array[Byte], offset:Int):Long = {
+    var rc = 0L
+    var shift = 0
+    var i = offset
+    var b = 0x80
+    while( (b & 0x80) != 0 ) {
+      if( shift >= 64 ) {
+        throw new java.io.IOException("Malformed var int")
+      }
+      b = bytes(i)
+      rc |= (b & 0x7FL) << shift
+      shift += 7
+      i += 1
+    }
+    rc
   }
 
-  def decodeLong(bytes:Buffer):Long = {
-    val in = new DataByteArrayInputStream(bytes)
-    in.readLong()
+  def encodeLong(a1:Long) = {
+    val rc = new Array[Byte](8)
+    putLong(rc, 0, a1)
+    new Buffer(rc)
   }
-  def decodeLong(bytes:Array[Byte]):Long = {
-    val in = new DataByteArrayInputStream(bytes)
-    in.readLong()
+
+  def encodeVLong(a1:Long):Array[Byte] = {
+    val rc = new Array[Byte](AbstractVarIntSupport.computeVarLongSize(a1))
+    putVarLong(rc, 0, a1)
+    rc
+  }
+
+  def decodeVLong(bytes:Array[Byte]):Long = getVarLong(bytes, 0)
+
+  def encodeLongKey(a1:Byte, a2:Long):Array[Byte] = {
+    val rc = new Array[Byte](9)
+    rc(0) = a1
+    putLong(rc, 1, a2)
+    rc
   }
+  def decodeLongKey(bytes:Array[Byte]):(Byte, Long) = (bytes(0), getLong(bytes, 1))
+
+  def decodeLong(bytes:Buffer):Long = getLong(bytes.data, bytes.offset)
+  def decodeLong(bytes:Array[Byte]):Long = getLong(bytes, 0)
 
   def encodeEntryKey(a1:Byte, a2:Long, a3:Long):Array[Byte] = {
-    val out = new DataByteArrayOutputStream(17)
-    out.writeByte(a1.toInt)
-    out.writeLong(a2)
-    out.writeLong(a3)
-    out.getData
+    val rc = new Array[Byte](17)
+    rc(0) = a1
+    putLong(rc, 1, a2)
+    putLong(rc, 9, a3)
+    rc
   }
 
   def encodeEntryKey(a1:Byte, a2:Long, a3:Buffer):Array[Byte] = {
-    val out = new DataByteArrayOutputStream(9+a3.length)
-    out.writeByte(a1.toInt)
-    out.writeLong(a2)
-    out.write(a3)
-    out.getData
+    val rc = new Array[Byte](9+a3.length)
+    rc(0) = a1
+    putLong(rc, 1, a2)
+    System.arraycopy(a3.data, a3.offset, rc, 9, a3.length)
+    rc
   }
-  
+
+  def decodeEntrySeq(bytes:Array[Byte]):Long = getLong(bytes, 9)
+
   def decodeEntryKey(bytes:Array[Byte]):(Byte, Long, Buffer) = {
-    val in = new DataByteArrayInputStream(bytes)
-    (in.readByte(), in.readLong(), in.readBuffer(in.available()))
+    (bytes(0), getLong(bytes, 1), new Buffer(bytes, 9, bytes.length-9))
+  }
+
+  /**
+   * Compares the keys the way the LevelDB bytewise comparator does.
+   */
+  def compareKeys(a1:Array[Byte], a2:Array[Byte]):Int = {
+    val length = math.min(a1.length, a2.length)
+    var i = 0
+    while( i < length ) {
+      val rc = (a1(i) & 0xFF) - (a2(i) & 0xFF)
+      if( rc != 0 ) {
+        return rc
+      }
+      i += 1
+    }
+    a1.length - a2.length
+  }
+
+  def startsWith(key:Array[Byte], prefix:Array[Byte]):Boolean = {
+    if( key.length < prefix.length ) {
+      return false
+    }
+    var i = 0
+    while( i < prefix.length ) {
+      if( key(i) != prefix(i) ) {
+        return false
+      }
+      i += 1
+    }
+    true
   }
 
   final class RichDB(val db: DB) {
@@ -194,11 +374,15 @@ object LevelDBClient extends Log {
       db.put(key, value, wo)
     }
     
-    def write[T](wo:WriteOptions=new WriteOptions, max_write_latency:TimeMetric = TimeMetric())(func: WriteBatch=>T):T = {
+    def write[T](wo:WriteOptions=new WriteOptions, max_write_latency:TimeMetric = null)(func: WriteBatch=>T):T = {
       val updates = db.createWriteBatch()
       try {
         val rc=Some(func(updates))
-        max_write_latency {
+        if( max_write_latency!=null ) {
+          max_write_latency {
+            db.write(updates, wo)
+          }
+        } else {
           db.write(updates, wo)
         }
         return rc.get
@@ -236,8 +420,8 @@ object LevelDBClient extends Log {
       val iterator = db.iterator(ro)
       iterator.seek(prefix);
       try {
-        def check(key:Buffer) = {
-          key.startsWith(prefix) && func(key)
+        def check(key:Array[Byte]) = {
+          startsWith(key, prefix) && func(key)
         }
         while( iterator.hasNext && check(iterator.peekNext.getKey) ) {
           iterator.next()
@@ -251,8 +435,8 @@ object LevelDBClient extends Log {
       val iterator = db.iterator(ro)
       iterator.seek(prefix);
       try {
-        def check(key:Buffer) = {
-          key.startsWith(prefix) && func(key, iterator.peekNext.getValue)
+        def check(key:Array[Byte]) = {
+          startsWith(key, prefix) && func(key, iterator.peekNext.getValue)
         }
         while( iterator.hasNext && check(iterator.peekNext.getKey) ) {
           iterator.next()
@@ -262,9 +446,7 @@ object LevelDBClient extends Log {
       }
     }
 
-    def compare(a1:Array[Byte], a2:Array[Byte]):Int = {
-      new Buffer(a1).compareTo(new Buffer(a2))
-    }
+    def compare(a1:Array[Byte], a2:Array[Byte]):Int = compareKeys(a1, a2)
 
     def cursorRangeKeys(startIncluded:Array[Byte], endExcluded:Array[Byte], ro:ReadOptions=new ReadOptions)(func: Array[Byte] => Boolean): Unit = {
       val iterator = db.iterator(ro)
@@ -349,6 +531,35 @@ object LevelDBClient extends Log {
   import FileSupport._
   def create_sequence_file(directory:File, id:Long, suffix:String) = directory / ("%016x%s".format(id, suffix))
 
+  // The index table files never change once written, the other index
+  // files do.
+  def is_index_table(name:String) = name.endsWith(".sst") || name.endsWith(".ldb")
+
+  /**
+   * Replays the logs in the log directory into a new snapshot of the
+   * store's index.  Used by the standby stores, so it never appends to
+   * the logs since they are copies of the master's logs.  Returns the
+   * position the index got replayed to.
+   */
+  def replay_logs(store:LevelDBStore, log_directory:File):Long = {
+    val temp_appender = store.directory / "replay.tmp"
+    val client = new LevelDBClient(store) {
+      override def logStripeDirectories = Array[File]()
+      override def createLog = new RecordLog(log_directory, LOG_SUFFIX) {
+        truncate_on_open = false
+        override def create_log_appender(position: Long) = new LogAppender(temp_appender, position)
+      }
+    }
+    try {
+      client.start()
+      val rc = client.log.appender_limit
+      client.stop()
+      rc
+    } finally {
+      temp_appender.delete()
+    }
+  }
+
   def find_sequence_files(directory:File, suffix:String):TreeMap[Long, File] = {
     TreeMap((directory.listFiles.flatMap { f=>
       if( f.getName.endsWith(suffix) ) {
@@ -365,6 +576,7 @@ object LevelDBClient extends Log {
     }): _* )
   }
 
+  // Only used to read the counters of schema version 1 stores.
   class CollectionMeta extends Serializable {
     var size = 0L
     var last_key:Array[Byte] = _
@@ -391,6 +603,9 @@ class LevelDBClient(store: LevelDBStore) {
 
   def directory = store.directory
   def logDirectory = Option(store.logDirectory).getOrElse(store.directory)
+  def logStripeDirectories:Array[File] = Option(store.logStripeDirectories).map { value =>
+    value.split("""(,|\s)+""").map(_.trim()).filterNot(_.isEmpty).map(new File(_))
+  }.getOrElse(Array())
 
   /////////////////////////////////////////////////////////////////////
   //
@@ -403,6 +618,13 @@ class LevelDBClient(store: LevelDBStore) {
 
   var log:RecordLog = _
 
+  // The message data gets striped across these logs, each one has it's
+  // own write thread.  The index records always go to the main log.
+  var stripes = Array[RecordLog]()
+  var stripeExecutors = Array[ExecutorService]()
+  // Where the stripes were at when the last index snapshot was taken.
+  var stripeSnapshotPositions = Array[Long]()
+
   var index:RichDB = _
   var indexOptions:Options = _
 
@@ -410,9 +632,15 @@ class LevelDBClient(store: LevelDBStore) {
   val snapshotRwLock = new ReentrantReadWriteLock(true)
 
   var factory:DBFactory = _
-  val logRefs = HashMap[Long, LongCounter]()
-  
-  val collectionMeta = HashMap[Long, CollectionMeta]()
+  // These get updated for every enqueue and dequeue, so they are
+  // primitive maps to avoid boxing.
+  val logRefs = new LongLongHashMap()
+  val collectionMeta = new CollectionMetaMap()
+
+  // The log refs and collection metas which changed since they were
+  // last written to the index.
+  val dirtyLogRefs = new LongHashSet()
+  val dirtyCollectionMeta = new LongHashSet()
 
   def dirtyIndexFile = directory / ("dirty"+INDEX_SUFFIX)
   def tempIndexFile = directory / ("temp"+INDEX_SUFFIX)
@@ -422,8 +650,38 @@ class LevelDBClient(store: LevelDBStore) {
     new RecordLog(logDirectory, LOG_SUFFIX)
   }
 
+  def createStripeLog(directory:File): RecordLog = {
+    new RecordLog(directory, LOG_SUFFIX)
+  }
+
+  private def configureLog(log:RecordLog) = {
+    log.logSize = store.logSize
+    log.mmap_reads = store.logMemoryMappedReads
+    log.direct_write_threshold = store.logDirectWriteThreshold
+    log.direct_write_buffer = store.logDirectWriteBuffer
+    log.compress_blocks = store.snappyCompressLogBlocks
+    log.preallocate_logs = store.logPreallocateCount
+    log.recycle_logs = store.logRecycle
+  }
+
+  /**
+   * Returns the log which holds the given position.
+   */
+  def log_for(pos:Long):RecordLog = {
+    val stripe = stripe_of(pos)
+    if( stripe == 0 ) {
+      log
+    } else if( stripe <= stripes.length ) {
+      stripes(stripe-1)
+    } else {
+      throw new java.io.IOException("Position %d is in log stripe %d which is not configured.".format(pos, stripe))
+    }
+  }
+
   var writeExecutor:ExecutorService = _
 
+  var message_cache:MessageCache = _
+
   def storeTrace(ascii:String, force:Boolean=false) = {
     val time = new SimpleDateFormat("dd/MMM/yyyy:HH:mm::ss Z").format(new Date)
     log.appender { appender =>
@@ -436,6 +694,110 @@ class LevelDBClient(store: LevelDBStore) {
 
   def retry[T](func : =>T):T = RetrySupport.retry(LevelDBClient, store.isStarted, func _)
 
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Group commit support: the write thread hands off completed stores to
+  // the sync thread so that it can keep appending while the log is
+  // being forced.  One force covers all the stores queued before it.
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  case class SyncRequest(syncNeeded:Boolean, func:()=>Unit)
+  val SYNC_THREAD_STOP = SyncRequest(false, null)
+
+  val syncRequests = new LinkedBlockingQueue[SyncRequest]()
+  val pendingSyncRequests = new atomic.AtomicInteger()
+  var syncThread:Thread = _
+
+  val log_sync_counter = new atomic.AtomicLong()
+  val log_synced_store_counter = new atomic.AtomicLong()
+
+  /**
+   * Executes func once the data that has been flushed to the log so far
+   * has been synced to disk (if syncNeeded is set).  The functions are
+   * executed in the order they are submitted.
+   */
+  def whenSynced(syncNeeded:Boolean)(func: =>Unit) = {
+    if( !syncNeeded && pendingSyncRequests.get()==0 ) {
+      // Nothing ahead of us that we have to wait for.
+      func
+    } else {
+      pendingSyncRequests.incrementAndGet()
+      syncRequests.put(SyncRequest(syncNeeded, func _))
+    }
+  }
+
+  def startSyncThread = {
+    syncThread = new Thread("LevelDB store io sync") {
+      setDaemon(true)
+      override def run() = {
+        import collection.JavaConversions._
+        val batch = new ju.ArrayList[SyncRequest]()
+        var running = true
+        while( running ) {
+          batch.add(syncRequests.take())
+          syncRequests.drainTo(batch)
+
+          if( batch.exists(_.syncNeeded) ) {
+            retry {
+              force_stripes
+              log.force_flushed
+            }
+            log_sync_counter.incrementAndGet()
+            log_synced_store_counter.addAndGet(batch.count(_.syncNeeded))
+          }
+
+          batch.foreach { request =>
+            if( request eq SYNC_THREAD_STOP ) {
+              running = false
+            } else {
+              try {
+                request.func()
+              } catch {
+                case e:Throwable => warn(e, "Sync completion callback failed: "+e)
+              }
+              pendingSyncRequests.decrementAndGet()
+            }
+          }
+          batch.clear()
+        }
+      }
+    }
+    syncThread.start()
+  }
+
+  /**
+   * Syncs the log stripes in parallel.  They are synced before the main
+   * log so that index records never reach the disk ahead of their data.
+   */
+  private def force_stripes = {
+    if( stripes.length == 1 ) {
+      stripes(0).force_flushed
+    } else if( stripes.length > 1 ) {
+      stripes.map { stripe =>
+        THREAD_POOL.submit(new Runnable() {
+          def run() = stripe.force_flushed
+        })
+      }.foreach(await(_))
+    }
+  }
+
+  private def await[T](future:java.util.concurrent.Future[T]):T = {
+    try {
+      future.get
+    } catch {
+      case e:ExecutionException => throw e.getCause
+    }
+  }
+
+  def stopSyncThread = {
+    if( syncThread!=null ) {
+      syncRequests.put(SYNC_THREAD_STOP)
+      syncThread.join()
+      syncThread = null
+    }
+  }
+
   def start() = {
 
     // Lets check store compatibility...
@@ -454,6 +816,8 @@ class LevelDBClient(store: LevelDBStore) {
       }
       ver match {
         case STORE_SCHEMA_VERSION => // All is good.
+        case 2 => // Replay still understands the older entry records.
+        case 1 => // The store counters get converted to the new format on load.
         case _ => throw new Exception("Cannot open the store.  It's schema version is not supported.")
       }
     }
@@ -502,212 +866,494 @@ class LevelDBClient(store: LevelDBStore) {
       def log(msg: String) = LOG.debug("index: "+msg.stripSuffix("\n"))
     })
 
+    message_cache = if( store.messageCacheSize > 0 ) {
+      new MessageCache(store.messageCacheSize, store.messageCacheEviction.toLowerCase != "fifo")
+    } else {
+      null
+    }
+
     log = createLog
-    log.logSize = store.logSize
-    log.on_log_rotate = ()=> {
-      // We snapshot the index every time we rotate the logs.
-      writeExecutor {
-        snapshotIndex(false)
-      }
+    configureLog(log)
+
+    // The stripes must keep their order between restarts since the stripe
+    // number is part of the positions stored in the index.
+    stripes = logStripeDirectories.zipWithIndex.map { case (dir, i) =>
+      val stripe = createStripeLog(dir)
+      configureLog(stripe)
+      stripe.start_position = (i+1).toLong << STRIPE_POSITION_SHIFT
+      stripe
     }
+    stripeExecutors = (1 to stripes.length).map { i =>
+      Executors.newFixedThreadPool(1, new ThreadFactory() {
+        def newThread(r: Runnable) = {
+          val rc = new Thread(r, "LevelDB store io stripe "+i+" write")
+          rc.setDaemon(true)
+          rc
+        }
+      })
+    }.toArray
 
     retry {
       log.open
     }
+    stripes.foreach { stripe =>
+      retry {
+        stripe.open
+      }
+    }
+    // Nothing in the stripes can be deleted until the next snapshot.
+    stripeSnapshotPositions = stripes.map(_.start_position)
+    startSyncThread
+    try {
+      // Find out what was the last snapshot.
+      val snapshots = find_sequence_files(directory, INDEX_SUFFIX)
+      var lastSnapshotIndex = snapshots.lastOption
+      lastIndexSnapshotPos = lastSnapshotIndex.map(_._1).getOrElse(0)
 
-    // Find out what was the last snapshot.
-    val snapshots = find_sequence_files(directory, INDEX_SUFFIX)
-    var lastSnapshotIndex = snapshots.lastOption
-    lastIndexSnapshotPos = lastSnapshotIndex.map(_._1).getOrElse(0)
+      // Only keep the last snapshot..
+      snapshots.filterNot(_._1 == lastIndexSnapshotPos).foreach( _._2.recursiveDelete )
+      tempIndexFile.recursiveDelete
 
-    // Only keep the last snapshot..
-    snapshots.filterNot(_._1 == lastIndexSnapshotPos).foreach( _._2.recursiveDelete )
-    tempIndexFile.recursiveDelete
+      retry {
 
-    retry {
+        // Delete the dirty indexes
+        dirtyIndexFile.recursiveDelete
+        dirtyIndexFile.mkdirs()
 
-      // Delete the dirty indexes
-      dirtyIndexFile.recursiveDelete
-      dirtyIndexFile.mkdirs()
+        lastSnapshotIndex.foreach { case (id, file) =>
+          // Resume log replay from a snapshot of the index..
+          try {
+            file.listFiles.foreach { file =>
+              file.linkTo(dirtyIndexFile / file.getName)
+            }
+          } catch {
+            case e:Exception =>
+              warn(e, "Could not recover snapshot of the index: "+e)
+              lastSnapshotIndex  = None
+          }
+        }
 
-      lastSnapshotIndex.foreach { case (id, file) =>
-        // Resume log replay from a snapshot of the index..
+        index = new RichDB(factory.open(dirtyIndexFile, indexOptions));
         try {
-          file.listFiles.foreach { file =>
-            file.linkTo(dirtyIndexFile / file.getName)
-          }
+          loadCounters
+          index.put(DIRTY_INDEX_KEY, TRUE)
+          // Update the index /w what was stored on the logs..
+          replay(lastIndexSnapshotPos)
+          awaitLogFiles
+          dropDeletedLogRefs
         } catch {
-          case e:Exception =>
-            warn(e, "Could not recover snapshot of the index: "+e)
-            lastSnapshotIndex  = None
+          case e:Throwable =>
+            // replay failed.. good thing we are in a retry block...
+            index.close
+            throw e;
         }
       }
+    } catch {
+      case e:Throwable =>
+        // Don't leave the sync thread running behind a failed start.
+        stopSyncThread
+        throw e
+    }
+  }
 
-      index = new RichDB(factory.open(dirtyIndexFile, indexOptions));
-      try {
-        loadCounters
-        index.put(DIRTY_INDEX_KEY, TRUE)
-        // Update the index /w what was stored on the logs..
-        var pos = lastIndexSnapshotPos;
-        var last_reported_at = System.currentTimeMillis();
-        var showing_progress = false
-        var last_reported_pos = 0L
+  /**
+   * Waits for log files older than the replayed ones that are still being
+   * restored.  The HA store downloads them while replay runs.
+   */
+  def awaitLogFiles = {}
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Recovery replay: a reader thread reads and decodes the log records
+  // while the start thread applies them to the index in large batches.
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  case class ReplayRecord(kind:Byte, record:AnyRef, next_pos:Long)
+  val REPLAY_END = ReplayRecord(0, null, 0)
+
+  @volatile
+  var replay_start = 0L
+  @volatile
+  var replay_position = 0L
+  @volatile
+  var replay_limit = 0L
+
+  def replay_progress = {
+    val total = replay_limit-replay_start
+    if( total <= 0 ) {
+      100.0
+    } else {
+      (replay_position-replay_start)*100.0 / total
+    }
+  }
+
+  private def replay(start:Long) = {
+    replay_start = start
+    replay_position = start
+    replay_limit = log.appender_limit
+
+    val queue = new ArrayBlockingQueue[ReplayRecord](REPLAY_QUEUE_SIZE)
+    val done = new atomic.AtomicBoolean(false)
+    val failure = new atomic.AtomicReference[Throwable]()
+
+    def enqueue(record:ReplayRecord) = {
+      while( !done.get && !queue.offer(record, 100, TimeUnit.MILLISECONDS) ) {
+      }
+    }
+
+    THREAD_POOL.execute(new Runnable() {
+      def run() {
         try {
-          while (pos < log.appender_limit) {
-            val now = System.currentTimeMillis();
-            if( now > last_reported_at+1000 ) {
-              val at = pos-lastIndexSnapshotPos
-              val total = log.appender_limit-lastIndexSnapshotPos
-              val rate = (pos-last_reported_pos)*1000.0 / (now - last_reported_at)
-              val eta = (total-at)/rate
-              val remaining = if(eta > 60*60) {
-                "%.2f hrs".format(eta/(60*60))
-              } else if(eta > 60) {
-                "%.2f mins".format(eta/60)
-              } else {
-                "%.0f secs".format(eta)
+          var pos = start
+          while (pos < replay_limit && !done.get) {
+            log.read(pos) match {
+              case Some((kind, data, next_pos)) =>
+                val record = kind match {
+                  case LOG_ADD_COLLECTION => decodeCollectionRecord(data)
+                  case LOG_REMOVE_COLLECTION => decodeVLong(data.toByteArray):jl.Long
+                  case LOG_ADD_ENTRY => decodeEntryRecord(data)
+                  case LOG_REMOVE_ENTRY => decodeEntryRecord(data)
+                  case LOG_UPDATE_ENTRY => decodeEntryRecord(data)
+                  case LOG_ADD_PACKED_ENTRY => decodePackedEntry(data)
+                  case LOG_REMOVE_PACKED_ENTRY => decodePackedEntry(data)
+                  case _ => null // Skip other records, they don't modify the index.
+                }
+                if( record!=null ) {
+                  enqueue(ReplayRecord(kind, record, next_pos))
+                }
+                pos = next_pos
+              case None =>
+                throw new java.io.IOException("No log file holds position: "+pos)
+            }
+          }
+        } catch {
+          case e:Throwable => failure.set(e)
+        } finally {
+          enqueue(REPLAY_END)
+        }
+      }
+    })
+
+    var batch = index.db.createWriteBatch()
+    var batch_size = 0
+    def flush_batch = {
+      if( batch_size > 0 ) {
+        storeCounters(batch)
+        index.store(batch)
+        batch.close()
+        batch = index.db.createWriteBatch()
+        batch_size = 0
+      }
+    }
+
+    // Only the syncs are ordered, the OS can write the main log out ahead
+    // of the stripes.  Entries whose data did not survive the crash don't
+    // get indexed.
+    val stripe_limits = stripes.map(_.appender_limit)
+    def lost(location:Long) = {
+      val stripe = stripe_of(location)
+      stripe > 0 && stripe <= stripe_limits.length && location >= stripe_limits(stripe-1)
+    }
+    def entry_lost(record:ReplayRecord) = record.record match {
+      case entry:EntryRecord.Buffer => entry.hasValueLocation && lost(entry.getValueLocation)
+      case entry:PackedEntry => lost(entry.value_location)
+      case _ => false
+    }
+    def lost_key(record:ReplayRecord):Buffer = record.record match {
+      case entry:EntryRecord.Buffer => encodeEntryKey(ENTRY_PREFIX, entry.getCollectionKey, entry.getEntryKey)
+      case entry:PackedEntry => encodeEntryKey(ENTRY_PREFIX, entry.collection_key, entry.seq)
+    }
+    // The keys of the entries which did not get indexed.
+    val lost_entries = new ju.HashSet[Buffer]()
+    var lost_count = 0
+
+    var last_reported_at = System.currentTimeMillis()
+    var last_reported_pos = start
+    try {
+      var record = queue.take()
+      while( record ne REPLAY_END ) {
+        record.kind match {
+          case LOG_ADD_COLLECTION =>
+            val collection = record.record.asInstanceOf[CollectionRecord.Buffer]
+            batch.put(encodeLongKey(COLLECTION_PREFIX, collection.getKey), collection.toUnframedByteArray)
+            collectionMetaCreate(collection.getKey)
+
+          case LOG_REMOVE_COLLECTION =>
+            val collectionKey = record.record.asInstanceOf[jl.Long].longValue
+            // The cursor has to see the entries which are still batched up.
+            flush_batch
+            // Delete the entries in the collection.
+            val ro = new ReadOptions
+            ro.fillCache(false)
+            index.cursorPrefixed(encodeLongKey(ENTRY_PREFIX, collectionKey), ro) { (key, value)=>
+              val entry = decodeEntryRecord(value)
+              if ( entry.hasValueLocation ) {
+                logRefDecrement(entry.getValueLocation)
               }
+              batch.delete(key)
+              true
+            }
+            batch.delete(encodeLongKey(COLLECTION_PREFIX, collectionKey))
+            collectionMetaRemove(collectionKey)
+
+          case LOG_ADD_ENTRY | LOG_ADD_PACKED_ENTRY if entry_lost(record) =>
+            lost_entries.add(lost_key(record))
+            lost_count += 1
 
-              System.out.print("Replaying recovery log: %f%% done (%,d/%,d bytes) @ %,.2f kb/s, %s remaining.     \r".format(
-                at*100.0/total, at, total, rate/1024, remaining))
-              showing_progress = true;
-              last_reported_at = now
-              last_reported_pos = pos
+          case LOG_REMOVE_ENTRY | LOG_REMOVE_PACKED_ENTRY | LOG_UPDATE_ENTRY
+            if !lost_entries.isEmpty && lost_entries.contains(lost_key(record)) =>
+            if( record.kind != LOG_UPDATE_ENTRY ) {
+              lost_entries.remove(lost_key(record))
             }
 
+          case LOG_ADD_ENTRY =>
+            val entry = record.record.asInstanceOf[EntryRecord.Buffer]
 
-            log.read(pos).map {
-              case (kind, data, nextPos) =>
-                kind match {
-                  case LOG_ADD_COLLECTION =>
-                    val record= decodeCollectionRecord(data)
-                    index.put(encodeLongKey(COLLECTION_PREFIX, record.getKey), data)
-                    collectionMeta.put(record.getKey, new CollectionMeta)
-
-                  case LOG_REMOVE_COLLECTION =>
-                    val record = decodeCollectionKeyRecord(data)
-                    // Delete the entries in the collection.
-                    index.cursorPrefixed(encodeLongKey(ENTRY_PREFIX, record.getKey), new ReadOptions) { (key, value)=>
-                      val record = decodeEntryRecord(value)
-                      val pos = if ( record.hasValueLocation ) {
-                        Some(record.getValueLocation)
-                      } else {
-                        None
-                      }
-                      pos.foreach(logRefDecrement(_))
-                      index.delete(key)
-                      true
-                    }
-                    index.delete(data)
-                    collectionMeta.remove(record.getKey)
-
-                  case LOG_ADD_ENTRY =>
-                    val record = decodeEntryRecord(data)
-
-                    val index_record = new EntryRecord.Bean()
-                    index_record.setValueLocation(record.getValueLocation)
-                    index_record.setValueLength(record.getValueLength)
-                    val    index_value = encodeEntryRecord(index_record.freeze()).toByteArray
-
-                    index.put(encodeEntryKey(ENTRY_PREFIX, record.getCollectionKey, record.getEntryKey), index_value)
-
-                    if ( record.hasValueLocation ) {
-                      logRefIncrement(record.getValueLocation)
-                    }
-                    collectionIncrementSize(record.getCollectionKey, record.getEntryKey.toByteArray)
-
-                  case LOG_REMOVE_ENTRY =>
-                    val record = decodeEntryRecord(data)
-
-                    // Figure out which log file this message reference is pointing at..
-                    if ( record.hasValueLocation ) {
-                      logRefDecrement(record.getValueLocation)
-                    }
-
-                    index.delete(encodeEntryKey(ENTRY_PREFIX, record.getCollectionKey, record.getEntryKey))
-                    collectionDecrementSize( record.getCollectionKey)
-
-                  case _ => // Skip other records, they don't modify the index.
+            val index_value = encodeIndexEntry(entry.getValueLocation, entry.getValueLength)
 
-                }
-                pos = nextPos
+            batch.put(encodeEntryKey(ENTRY_PREFIX, entry.getCollectionKey, entry.getEntryKey), index_value)
+
+            if ( entry.hasValueLocation ) {
+              logRefIncrement(entry.getValueLocation)
             }
-          }
+            val collectionKey = entry.getCollectionKey
+            if( isSeqKey(entry.getEntryKey) ) {
+              collectionIncrementSize(collectionKey, decodeLong(entry.getEntryKey))
+            } else {
+              collectionIncrementSize(collectionKey, collectionMeta.lastSeqOf(collectionKey))
+            }
+
+          case LOG_REMOVE_ENTRY =>
+            val entry = record.record.asInstanceOf[EntryRecord.Buffer]
+
+            // Figure out which log file this message reference is pointing at..
+            if ( entry.hasValueLocation ) {
+              logRefDecrement(entry.getValueLocation)
+            }
+
+            batch.delete(encodeEntryKey(ENTRY_PREFIX, entry.getCollectionKey, entry.getEntryKey))
+            collectionDecrementSize(entry.getCollectionKey)
+
+          case LOG_ADD_PACKED_ENTRY =>
+            val entry = record.record.asInstanceOf[PackedEntry]
+            batch.put(encodeEntryKey(ENTRY_PREFIX, entry.collection_key, entry.seq),
+              encodeIndexEntry(entry.value_location, entry.value_length))
+            logRefIncrement(entry.value_location)
+            collectionIncrementSize(entry.collection_key, entry.seq)
+
+          case LOG_REMOVE_PACKED_ENTRY =>
+            val entry = record.record.asInstanceOf[PackedEntry]
+            logRefDecrement(entry.value_location)
+            batch.delete(encodeEntryKey(ENTRY_PREFIX, entry.collection_key, entry.seq))
+            collectionDecrementSize(entry.collection_key)
+
+          case LOG_UPDATE_ENTRY if entry_lost(record) =>
+            // The moved value did not make it, the entry keeps the old one.
+
+          case LOG_UPDATE_ENTRY =>
+            // The compactor moved the entry's value.
+            val entry = record.record.asInstanceOf[EntryRecord.Buffer]
+
+            val index_value = encodeIndexEntry(entry.getValueLocation, entry.getValueLength)
+
+            batch.put(encodeEntryKey(ENTRY_PREFIX, entry.getCollectionKey, entry.getEntryKey), index_value)
+            logRefDecrement(entry.getPreviousValueLocation)
+            logRefIncrement(entry.getValueLocation)
         }
-        catch {
-          case e:Throwable => e.printStackTrace()
+        batch_size += 1
+        if( batch_size >= REPLAY_BATCH_SIZE ) {
+          flush_batch
         }
-        if(showing_progress) {
-          System.out.print("                                                                       \r");
+        replay_position = record.next_pos
+
+        val now = System.currentTimeMillis()
+        if( now > last_reported_at+REPLAY_REPORT_INTERVAL ) {
+          val rate = (replay_position-last_reported_pos)*1000.0 / (now - last_reported_at)
+          info("Replaying recovery log: %.2f%% done (%,d/%,d bytes) @ %,.2f kb/s".format(
+            replay_progress, replay_position-replay_start, replay_limit-replay_start, rate/1024))
+          last_reported_at = now
+          last_reported_pos = replay_position
         }
-
-      } catch {
-        case e:Throwable =>
-          // replay failed.. good thing we are in a retry block...
-          index.close
-          throw e;
+        record = queue.take()
       }
+      flush_batch
+
+      // The batches were not synced, so sync them all at once now.
+      val wo = new WriteOptions
+      wo.sync(true)
+      index.put(DIRTY_INDEX_KEY, TRUE, wo)
+    } finally {
+      done.set(true)
+      batch.close()
+    }
+
+    if( lost_count > 0 ) {
+      warn("Dropped %d entries whose data was lost from the log stripes".format(lost_count))
+    }
+    val e = failure.get
+    if( e!=null ) {
+      warn(e, "Log replay stopped at position %d: %s".format(replay_position, e))
+    } else {
+      replay_position = replay_limit
+    }
+  }
+
+  /**
+   * Returns the info of the log file holding pos, or None if
+   * that file has been deleted.
+   */
+  private def log_file_info(pos: Long) = {
+    val log = log_for(pos)
+    log.log_info(pos).filter(info => pos < info.limit || info.position == log.appender_start)
+  }
+
+  /**
+   * The index snapshot can hold refs to log files which were deleted
+   * after moving their records.  Those records were moved by log
+   * records which replay could not match up with the deleted files.
+   */
+  private def dropDeletedLogRefs = {
+    import collection.JavaConversions._
+    val existing = (log +: stripes).flatMap(_.log_infos.map(_.position)).toSet
+    logRefs.keys.filterNot(existing.contains(_)).foreach { position =>
+      logRefs.remove(position)
+      dirtyLogRefs.add(position)
+    }
+    index.write() { batch =>
+      storeCounters(batch)
     }
   }
 
   private def logRefDecrement(pos: Long) {
-    log.log_info(pos).foreach { logInfo =>
-      logRefs.get(logInfo.position).foreach { counter =>
-        if (counter.decrementAndGet() == 0) {
+    log_file_info(pos).foreach { logInfo =>
+      if( logRefs.contains(logInfo.position) ) {
+        if (logRefs.addAndGet(logInfo.position, -1) == 0) {
           logRefs.remove(logInfo.position)
         }
+        dirtyLogRefs.add(logInfo.position)
       }
     }
   }
 
   private def logRefIncrement(pos: Long) {
-    log.log_info(pos).foreach { logInfo =>
-      logRefs.getOrElseUpdate(logInfo.position, new LongCounter()).incrementAndGet()
+    log_file_info(pos).foreach { logInfo =>
+      logRefIncrement(logInfo)
     }
   }
 
-  private def collectionDecrementSize(key: Long) {
-    collectionMeta.get(key).foreach(_.size -= 1)
+  private def logRefIncrement(logInfo: LogInfo) {
+    logRefs.addAndGet(logInfo.position, 1)
+    dirtyLogRefs.add(logInfo.position)
   }
-  private def collectionIncrementSize(key: Long, last_key:Array[Byte]) {
-    collectionMeta.get(key).foreach{ x=> 
-      x.size += 1
-      x.last_key = last_key
-    }
+
+  private def collectionMetaCreate(key: Long) {
+    collectionMeta.put(key, 0, 0)
+    dirtyCollectionMeta.add(key)
   }
 
-  private def storeCounters = {
-    def storeMap(key:Array[Byte], map:HashMap[Long, _ <: AnyRef]) {
-      val baos = new ByteArrayOutputStream()
-      val os = new ObjectOutputStream(baos);
-      os.writeInt(map.size);
-      map.foreach {
-        case (k, v) =>
-          os.writeLong(k)
-          os.writeObject(v)
-      }
-      os.close()
-      index.put(key, baos.toByteArray)
-    }
-    storeMap(LOG_REF_INDEX_KEY, logRefs)
-    storeMap(COLLECTION_META_KEY, collectionMeta)
+  private def collectionMetaRemove(key: Long) {
+    collectionMeta.remove(key)
+    dirtyCollectionMeta.add(key)
+  }
+
+  private def collectionDecrementSize(key: Long) {
+    collectionMeta.decrement(key)
+    dirtyCollectionMeta.add(key)
+  }
+  private def collectionIncrementSize(key: Long, last_seq:Long) {
+    collectionMeta.increment(key, last_seq)
+    dirtyCollectionMeta.add(key)
+  }
+
+  /**
+   * Adds the updates of the log refs and collection metas which have
+   * changed to the batch.  Each is stored under it's own key so
+   * the cost only depends on how many of them changed.
+   */
+  private def storeCounters(batch:WriteBatch):Unit = {
+    if( !dirtyLogRefs.isEmpty ) {
+      dirtyLogRefs.foreach { position =>
+        val key = encodeLongKey(LOG_REF_PREFIX, position)
+        if( logRefs.contains(position) ) {
+          batch.put(key, encodeLogRef(logRefs.get(position)))
+        } else {
+          batch.delete(key)
+        }
+      }
+      dirtyLogRefs.clear()
+    }
+    if( !dirtyCollectionMeta.isEmpty ) {
+      dirtyCollectionMeta.foreach { collectionKey =>
+        val key = encodeLongKey(COLLECTION_META_PREFIX, collectionKey)
+        if( collectionMeta.contains(collectionKey) ) {
+          batch.put(key, encodeCollectionMeta(collectionMeta.sizeOf(collectionKey), collectionMeta.lastSeqOf(collectionKey)))
+        } else {
+          batch.delete(key)
+        }
+      }
+      dirtyCollectionMeta.clear()
+    }
+  }
+
+  private def storeCounters:Unit = {
+    if( !dirtyLogRefs.isEmpty || !dirtyCollectionMeta.isEmpty ) {
+      index.write() { batch =>
+        storeCounters(batch)
+      }
+    }
   }
 
   private def loadCounters = {
-    def loadMap[T <: AnyRef](key:Array[Byte], map:HashMap[Long, T]) {
-      map.clear()
-      index.get(key, new ReadOptions).foreach { value=>
+    logRefs.clear()
+    collectionMeta.clear()
+    dirtyLogRefs.clear()
+    dirtyCollectionMeta.clear()
+    // The index may have been rolled back, so gc has to rescan the topics.
+    topic_gc_positions.clear()
+
+    val ro = new ReadOptions
+    ro.fillCache(false)
+    ro.verifyChecksums(verifyChecksums)
+    index.cursorPrefixed(LOG_REF_PREFIX_ARRAY, ro) { (key, value) =>
+      logRefs.put(decodeLongKey(key)._2, decodeLogRef(value))
+      true
+    }
+    index.cursorPrefixed(COLLECTION_META_PREFIX_ARRAY, ro) { (key, value) =>
+      val (size, last_seq) = decodeCollectionMeta(value)
+      collectionMeta.put(decodeLongKey(key)._2, size, last_seq)
+      true
+    }
+
+    // Stores created by schema version 1 kept the counters in
+    // serialized blobs, convert them to the new format.
+    def loadMap[T <: AnyRef](key:Array[Byte])(func:(Long, T)=>Unit) = {
+      index.get(key, ro).map { value=>
         val bais = new ByteArrayInputStream(value)
         val is = new ObjectInputStream(bais);
         var remaining = is.readInt()
         while(remaining > 0 ) {
-          map.put(is.readLong(), is.readObject().asInstanceOf[T])
+          func(is.readLong(), is.readObject().asInstanceOf[T])
           remaining-=1
         }
+      }.isDefined
+    }
+    val migrated_refs = loadMap[LongCounter](LOG_REF_INDEX_KEY) { (position, counter) =>
+      logRefs.put(position, counter.get())
+      dirtyLogRefs.add(position)
+    }
+    val migrated_meta = loadMap[CollectionMeta](COLLECTION_META_KEY) { (collectionKey, meta) =>
+      val last_seq = if( meta.last_key==null ) 0L else decodeLastSeq(meta.last_key)
+      collectionMeta.put(collectionKey, meta.size, last_seq)
+      dirtyCollectionMeta.add(collectionKey)
+    }
+    if( migrated_refs || migrated_meta ) {
+      index.write() { batch =>
+        storeCounters(batch)
+        batch.delete(LOG_REF_INDEX_KEY)
+        batch.delete(COLLECTION_META_KEY)
       }
     }
-    loadMap(LOG_REF_INDEX_KEY, logRefs)
-    loadMap(COLLECTION_META_KEY, collectionMeta)
   }
   
   def stop() = {
@@ -715,6 +1361,14 @@ class LevelDBClient(store: LevelDBStore) {
       writeExecutor.shutdown
       writeExecutor.awaitTermination(60, TimeUnit.SECONDS)
       writeExecutor = null
+      stripeExecutors.foreach { executor =>
+        executor.shutdown
+        executor.awaitTermination(60, TimeUnit.SECONDS)
+      }
+      stripeExecutors = Array()
+
+      // Let the pending stores complete.
+      stopSyncThread
 
       // this blocks until all io completes..
       // Suspend also deletes the index.
@@ -723,8 +1377,10 @@ class LevelDBClient(store: LevelDBStore) {
       if (log != null) {
         log.close
       }
+      stripes.foreach(_.close)
       copyDirtyIndexToSnapshot
       log = null
+      stripes = Array()
     }
   }
 
@@ -786,11 +1442,7 @@ class LevelDBClient(store: LevelDBStore) {
         file.linkTo(tmpDir / file.getName)
       }
 
-      // Rename to signal that the snapshot is complete.
-      val newSnapshotIndexPos = log.appender_limit
-      tmpDir.renameTo(snapshotIndexFile(newSnapshotIndexPos))
-      snapshotIndexFile(lastIndexSnapshotPos).recursiveDelete
-      lastIndexSnapshotPos = newSnapshotIndexPos
+      completeSnapshot(tmpDir)
 
     } catch {
       case e: Exception =>
@@ -801,19 +1453,116 @@ class LevelDBClient(store: LevelDBStore) {
     }
   }
 
+  private def completeSnapshot(tmpDir:File) = {
+    // Rename to signal that the snapshot is complete.
+    val newSnapshotIndexPos = log.appender_limit
+    val newStripeSnapshotPositions = stripes.map(_.appender_limit)
+    tmpDir.renameTo(snapshotIndexFile(newSnapshotIndexPos))
+    snapshotIndexFile(lastIndexSnapshotPos).recursiveDelete
+    lastIndexSnapshotPos = newSnapshotIndexPos
+    stripeSnapshotPositions = newStripeSnapshotPositions
+    lastIndexSnapshotTime = System.currentTimeMillis()
+  }
+
+  @volatile
+  var lastIndexSnapshotTime = System.currentTimeMillis()
+  val max_index_checkpoint_latency = TimeMetric()
+
+  /**
+   * Snapshots the index without closing it.  Index users are only
+   * blocked while the counters get stored and the index files get
+   * linked or copied.
+   */
   def snapshotIndex(sync:Boolean=false):Unit = {
-    suspend()
+    val lock = snapshotRwLock.writeLock()
+    lock.lock()
     try {
-      if( sync ) {
-        log.current_appender.force
-      }
-      if( log.appender_limit == lastIndexSnapshotPos  ) {
-        // no need to snapshot again...
-        return
+      max_index_checkpoint_latency {
+        if( sync ) {
+          stripes.foreach(_.current_appender.force)
+          log.current_appender.force
+        }
+        if( log.appender_limit == lastIndexSnapshotPos  ) {
+          // no need to snapshot again...
+          return
+        }
+        storeCounters
+        if( !checkpointIndex ) {
+          // The index kept changing under us, fall back to
+          // snapshotting a closed index.
+          suspend()
+          try {
+            copyDirtyIndexToSnapshot
+          } finally {
+            resume()
+          }
+        }
       }
-      copyDirtyIndexToSnapshot
     } finally {
-      resume()
+      lock.unlock()
+    }
+  }
+
+  /**
+   * <p>
+   * Copies the open index to a new snapshot.  The table files never
+   * change once written so they get hard linked.  The rest of the files
+   * (the write ahead log and the manifest) are still being written to
+   * and are copied.
+   * </p>
+   * <p>
+   * We hold the write lock so nothing is written to the index, but
+   * background compactions still add and remove table files.  The copy
+   * is only consistent if the table files did not change while it was
+   * made, otherwise it is retried.
+   * </p>
+   */
+  private def checkpointIndex:Boolean = {
+    def tables = dirtyIndexFile.listFiles.filter(x => is_index_table(x.getName)).map(_.getName).toSet
+
+    val tmpDir = tempIndexFile
+    var attempt = 0
+    while( attempt < CHECKPOINT_ATTEMPTS ) {
+      tmpDir.recursiveDelete
+      tmpDir.mkdirs()
+      try {
+        val before = tables
+        dirtyIndexFile.listFiles.foreach { file =>
+          if( is_index_table(file.getName) ) {
+            file.linkTo(tmpDir / file.getName)
+          } else if( file.getName != "LOCK" ) {
+            file.copyTo(tmpDir / file.getName)
+          }
+        }
+        if( before == tables && before.forall(name => (tmpDir / name).exists()) ) {
+          completeSnapshot(tmpDir)
+          return true
+        }
+      } catch {
+        case e:java.io.IOException =>
+          // A table file probably got deleted while we were linking it.
+          debug(e, "Index checkpoint attempt failed: "+e)
+      }
+      attempt += 1
+    }
+    tmpDir.recursiveDelete
+    false
+  }
+
+  /**
+   * Snapshots the index once enough data has been logged or enough time
+   * has passed since the last snapshot.
+   */
+  def checkpointIfNeeded = {
+    val logged = (log.appender_limit - lastIndexSnapshotPos) +
+      (0 until stripes.length).map(i => stripes(i).appender_limit - stripeSnapshotPositions(i)).sum
+    if( logged > 0 ) {
+      val bytes = store.indexCheckpointBytes
+      val interval = store.indexCheckpointInterval
+      if( (bytes > 0 && logged >= bytes) ||
+          (interval > 0 && System.currentTimeMillis() - lastIndexSnapshotTime >= interval) ) {
+        snapshotIndex(false)
+      }
     }
   }
 
@@ -821,19 +1570,34 @@ class LevelDBClient(store: LevelDBStore) {
     suspend()
     try{
       log.close
+      stripes.foreach(_.close)
       locked_purge
     } finally {
       retry {
         log.open
       }
+      stripes.foreach { stripe =>
+        retry {
+          stripe.open
+        }
+      }
+      stripeSnapshotPositions = stripes.map(_.start_position)
       resume()
     }
   }
 
   def locked_purge {
-    logDirectory.listFiles.foreach {x =>
-      if (x.getName.endsWith(".log")) {
-        x.delete()
+    if( message_cache!=null ) {
+      message_cache.clear
+    }
+    relocations.synchronized {
+      relocations.clear()
+    }
+    (logDirectory +: stripes.map(_.directory)).foreach { dir =>
+      dir.listFiles.foreach {x =>
+        if (x.getName.endsWith(".log")) {
+          x.delete()
+        }
       }
     }
     directory.listFiles.foreach {x =>
@@ -849,14 +1613,22 @@ class LevelDBClient(store: LevelDBStore) {
     retryUsingIndex {
       log.appender { appender =>
         appender.append(LOG_ADD_COLLECTION, value)
-        index.put(key, value.toByteArray)
+        index.write() { batch =>
+          batch.put(key, value.toByteArray)
+          collectionMetaCreate(record.getKey)
+          storeCounters(batch)
+        }
       }
     }
-    collectionMeta.put(record.getKey, new CollectionMeta)
   }
 
   def getLogAppendPosition = log.appender_limit
 
+  // How far a replica of the log is behind, in bytes and in ms.  The
+  // plain store does not replicate.
+  def replication_lag_bytes = 0L
+  def replication_lag_time = 0L
+
   def listCollections: Seq[(Long, CollectionRecord.Buffer)] = {
     val rc = ListBuffer[(Long, CollectionRecord.Buffer)]()
     retryUsingIndex {
@@ -875,7 +1647,6 @@ class LevelDBClient(store: LevelDBStore) {
     val key = encodeLongKey(COLLECTION_PREFIX, collectionKey)
     val value = encodeVLong(collectionKey)
     val entryKeyPrefix = encodeLongKey(ENTRY_PREFIX, collectionKey)
-    collectionMeta.remove(collectionKey)
     retryUsingIndex {
       log.appender { appender =>
         appender.append(LOG_REMOVE_COLLECTION, new Buffer(value))
@@ -884,18 +1655,22 @@ class LevelDBClient(store: LevelDBStore) {
       val ro = new ReadOptions
       ro.fillCache(false)
       ro.verifyChecksums(verifyChecksums)
-      index.cursorPrefixed(entryKeyPrefix, ro) { (key, value)=>
-        val record = decodeEntryRecord(value)
-        val pos = if ( record.hasValueLocation ) {
-          Some(record.getValueLocation)
-        } else {
-          None
+      index.write() { batch =>
+        index.cursorPrefixed(entryKeyPrefix, ro) { (key, value)=>
+          val record = decodeEntryRecord(value)
+          val pos = if ( record.hasValueLocation ) {
+            Some(record.getValueLocation)
+          } else {
+            None
+          }
+          pos.foreach(logRefDecrement(_))
+          batch.delete(key)
+          true
         }
-        pos.foreach(logRefDecrement(_))
-        index.delete(key)
-        true
+        batch.delete(key)
+        collectionMetaRemove(collectionKey)
+        storeCounters(batch)
       }
-      index.delete(key)
     }
   }
 
@@ -904,10 +1679,9 @@ class LevelDBClient(store: LevelDBStore) {
     val value = encodeVLong(collectionKey)
     val entryKeyPrefix = encodeLongKey(ENTRY_PREFIX, collectionKey)
 
-    val meta = collectionMeta.getOrElseUpdate(collectionKey, new CollectionMeta)
-    meta.size = 0
-    meta.last_key = null
-    
+    collectionMeta.put(collectionKey, 0, 0)
+    dirtyCollectionMeta.add(collectionKey)
+
     retryUsingIndex {
       index.get(key).foreach { collectionData =>
         log.appender { appender =>
@@ -918,29 +1692,125 @@ class LevelDBClient(store: LevelDBStore) {
         val ro = new ReadOptions
         ro.fillCache(false)
         ro.verifyChecksums(verifyChecksums)
-        index.cursorPrefixed(entryKeyPrefix, ro) { (key, value)=>
-          val record = decodeEntryRecord(value)
-          val pos = if ( record.hasValueLocation ) {
-            Some(record.getValueLocation)
-          } else {
-            None
+        index.write() { batch =>
+          index.cursorPrefixed(entryKeyPrefix, ro) { (key, value)=>
+            val record = decodeEntryRecord(value)
+            val pos = if ( record.hasValueLocation ) {
+              Some(record.getValueLocation)
+            } else {
+              None
+            }
+            pos.foreach(logRefDecrement(_))
+            batch.delete(key)
+            true
           }
-          pos.foreach(logRefDecrement(_))
-          index.delete(key)
-          true
+          storeCounters(batch)
         }
       }
     }
   }
 
-  def queueCursor(collectionKey: Long, seq:Long)(func: (Message)=>Boolean) = {
+  /**
+   * Cursors the queue entries starting at seq, a batch at a time.  The
+   * messages of a batch are loaded together so that their log reads
+   * can be sorted and merged.
+   */
+  def queueCursor(collectionKey: Long, seq:Long, batch_size:Int=CURSOR_BATCH_SIZE)(func: (Message)=>Boolean) = {
+    var next = seq
+    var continue = true
+    while( continue ) {
+      val entries = queueEntries(collectionKey, next, batch_size.max(1))
+      val messages = getMessages(entries.map(_._2))
+      var i = 0
+      while( continue && i < entries.length ) {
+        val (seq, locator) = entries(i)
+        val msg = messages(i)
+        // The message could be gone if it was removed since we looked it up.
+        if( msg!=null ) {
+          msg.getMessageId().setEntryLocator((collectionKey, seq))
+          msg.getMessageId().setDataLocator(locator)
+          continue = func(msg)
+        }
+        next = seq+1
+        i += 1
+      }
+      if( entries.length < batch_size ) {
+        continue = false
+      }
+    }
+  }
+
+  /**
+   * Returns the (seq, data locator) of up to max queue entries starting at seq.
+   */
+  def queueEntries(collectionKey: Long, seq:Long, max:Int) = {
+    val rc = ListBuffer[(Long, (Long, Int))]()
     collectionCursor(collectionKey, encodeLong(seq)) { (key, value) =>
-      val seq = decodeLong(key)
-      var locator = (value.getValueLocation, value.getValueLength)
-      val msg = getMessage(locator)
-      msg.getMessageId().setEntryLocator((collectionKey, seq))
-      msg.getMessageId().setDataLocator(locator)
-      func(msg)
+      rc += ((decodeLong(key), (value.getValueLocation, value.getValueLength)))
+      rc.size < max
+    }
+    rc.toArray
+  }
+
+  /**
+   * Loads the messages at the given data locators.  The ones which are
+   * not in the message cache are read from the log in one batch.
+   */
+  def getMessages(locators:Array[(Long, Int)]):Array[Message] = {
+    val rc = new Array[Message](locators.length)
+    val cache = message_cache
+    val missing = if( cache!=null ) {
+      for( i <- 0 until locators.length ) {
+        rc(i) = cache.get(locators(i))
+      }
+      (0 until locators.length).filter(rc(_)==null).toArray
+    } else {
+      (0 until locators.length).toArray
+    }
+    if( !missing.isEmpty ) {
+      val data = read_batch(missing.map(locators(_)))
+      for( i <- 0 until missing.length ) {
+        if( data(i)!=null ) {
+          val msg = decodeMessage(data(i))
+          rc(missing(i)) = msg
+          if( cache!=null ) {
+            cache.put(locators(missing(i)), msg)
+          }
+        }
+      }
+    }
+    rc
+  }
+
+  /**
+   * Loads the next batch of a queue ahead of time.  The decoded messages
+   * land in the message cache if it's enabled, otherwise the read at
+   * least warms up the OS page cache.
+   */
+  def prefetchQueue(collectionKey: Long, seq:Long, batch_size:Int) = {
+    val locators = queueEntries(collectionKey, seq, batch_size).map(_._2)
+    if( message_cache!=null ) {
+      getMessages(locators)
+    } else {
+      read_batch(locators)
+    }
+  }
+
+  /**
+   * Reads the records at the locators, batching up the reads of each log.
+   */
+  def read_batch(locators:Array[(Long, Int)]):Array[Buffer] = {
+    if( stripes.isEmpty ) {
+      log.read_batch(locators)
+    } else {
+      val rc = new Array[Buffer](locators.length)
+      (0 until locators.length).groupBy(i => stripe_of(locators(i)._1)).foreach { case (stripe, indexes) =>
+        val data = log_for(locators(indexes.head)._1).read_batch(indexes.map(locators(_)).toArray)
+        for( i <- 0 until indexes.length ) {
+          rc(indexes(i)) = data(i)
+        }
+      }
+      rc
     }
   }
 
@@ -955,26 +1825,33 @@ class LevelDBClient(store: LevelDBStore) {
 
   def getMessage(locator:AnyRef):Message = {
     assert(locator!=null)
-    val buffer = locator match {
+    locator match {
       case x:MessageRecord =>
         // Encoded form is still in memory..
-        Some(x.data)
-      case (pos:Long, len:Int) =>
-        // Load the encoded form from disk.
-        log.read(pos, len).map(new Buffer(_))
+        decodeMessage(x.data)
+      case (stored_pos:Long, len:Int) =>
+        val pos = relocated(stored_pos)
+        val cache = message_cache
+        var rc = if( cache!=null ) cache.get((pos, len)) else null
+        if( rc==null ) {
+          // Load the encoded form from disk.
+          rc = log_for(pos).read(pos, len).map(x=> decodeMessage(new Buffer(x))).getOrElse(null)
+          if( cache!=null && rc!=null ) {
+            cache.put((pos, len), rc)
+          }
+        }
+        rc
     }
-
-    // Lets decode
-    buffer.map{ x =>
-      var data = if( store.snappyCompressLogs ) {
-        Snappy.uncompress(x)
-      } else {
-        x
-      }
-      store.wireFormat.unmarshal(new ByteSequence(data.data, data.offset, data.length)).asInstanceOf[Message]
-    }.getOrElse(null)
   }
 
+  def decodeMessage(x:Buffer):Message = {
+    var data = if( store.snappyCompressLogs ) {
+      Snappy.uncompress(x)
+    } else {
+      x
+    }
+    store.wireFormat.unmarshal(new ByteSequence(data.data, data.offset, data.length)).asInstanceOf[Message]
+  }
 
   def collectionCursor(collectionKey: Long, cursorPosition:Buffer)(func: (Buffer, EntryRecord.Buffer)=>Boolean) = {
     val ro = new ReadOptions
@@ -990,7 +1867,7 @@ class LevelDBClient(store: LevelDBStore) {
   }
 
   def collectionSize(collectionKey: Long) = {
-    collectionMeta.get(collectionKey).map(_.size).getOrElse(0L)
+    collectionMeta.sizeOf(collectionKey)
   }
 
   def collectionIsEmpty(collectionKey: Long) = {
@@ -1013,14 +1890,20 @@ class LevelDBClient(store: LevelDBStore) {
 
   val max_index_write_latency = TimeMetric()
 
-  def store(uows: Array[DelayableUOW]) {
+  /**
+   * Stores the units of work in the log and index.  Returns true if the
+   * log needs to be synced before the units of work can be considered
+   * complete.
+   */
+  def store(uows: Array[DelayableUOW]):Boolean = {
     retryUsingIndex {
+      var syncNeeded = false
+      val stripe_write_total = if( stripes.isEmpty ) 0L else store_stripes(uows)
       log.appender { appender =>
 
-        var syncNeeded = false
         index.write(new WriteOptions, max_index_write_latency) { batch =>
 
-          var write_message_total = 0L
+          var write_message_total = stripe_write_total
           var write_enqueue_total = 0L
 
           uows.foreach { uow =>
@@ -1048,18 +1931,14 @@ class LevelDBClient(store: LevelDBStore) {
                 val key = encodeEntryKey(ENTRY_PREFIX, keyLocation._1, keyLocation._2)
 
                 if( dataLocator==null ) {
-                  dataLocator = entry.id.getDataLocator match {
+                  dataLocator = current_locator(key, relocated(entry.id.getDataLocator match {
                     case x:(Long, Int) => x
                     case x:MessageRecord => x.locator
                     case _ => throw new RuntimeException("Unexpected locator type")
-                  }
+                  }))
                 }
 
-                val log_record = new EntryRecord.Bean()
-                log_record.setCollectionKey(entry.queueKey)
-                log_record.setEntryKey(new Buffer(key, 9, 8))
-                log_record.setValueLocation(dataLocator._1)
-                appender.append(LOG_REMOVE_ENTRY, encodeEntryRecord(log_record.freeze()))
+                appender.append(LOG_REMOVE_PACKED_ENTRY, encodePackedEntry(keyLocation._1, keyLocation._2, dataLocator._1, 0))
 
                 batch.delete(key)
                 logRefDecrement(dataLocator._1)
@@ -1069,12 +1948,12 @@ class LevelDBClient(store: LevelDBStore) {
               action.enqueues.foreach { entry =>
                 
                 if(dataLocator ==null ) {
-                  dataLocator = entry.id.getDataLocator match {
+                  dataLocator = relocated(entry.id.getDataLocator match {
                     case x:(Long, Int) => x
                     case x:MessageRecord => x.locator
                     case _ =>
                       throw new RuntimeException("Unexpected locator type")
-                  }
+                  })
                 }
 
                 val start = System.nanoTime()
@@ -1083,29 +1962,14 @@ class LevelDBClient(store: LevelDBStore) {
 
                 assert(entry.id.getDataLocator()!=null)
 
-                val log_record = new EntryRecord.Bean()
-                log_record.setCollectionKey(entry.queueKey)
-                log_record.setEntryKey(new Buffer(key, 9, 8))
-                log_record.setValueLocation(dataLocator._1)
-                log_record.setValueLength(dataLocator._2)
-                appender.append(LOG_ADD_ENTRY, encodeEntryRecord(log_record.freeze()))
+                appender.append(LOG_ADD_PACKED_ENTRY, encodePackedEntry(entry.queueKey, entry.queueSeq, dataLocator._1, dataLocator._2))
+                batch.put(key, encodeIndexEntry(dataLocator._1, dataLocator._2))
 
-                val index_record = new EntryRecord.Bean()
-                index_record.setValueLocation(dataLocator._1)
-                index_record.setValueLength(dataLocator._2)
-                batch.put(key,  encodeEntryRecord(index_record.freeze()).toByteArray)
-
-                val log_data = encodeEntryRecord(log_record.freeze())
-                val index_data = encodeEntryRecord(index_record.freeze()).toByteArray
-
-                appender.append(LOG_ADD_ENTRY, log_data)
-                batch.put(key, index_data)
-
-                Option(log_info).orElse(log.log_info(dataLocator._1)).foreach { logInfo =>
-                  logRefs.getOrElseUpdate(logInfo.position, new LongCounter()).incrementAndGet()
+                Option(log_info).orElse(log_file_info(dataLocator._1)).foreach { logInfo =>
+                  logRefIncrement(logInfo)
                 }
 
-                collectionIncrementSize(entry.queueKey, log_record.getEntryKey.toByteArray)
+                collectionIncrementSize(entry.queueKey, entry.queueSeq)
                 write_enqueue_total += System.nanoTime() - start
               }
 
@@ -1127,13 +1991,11 @@ class LevelDBClient(store: LevelDBStore) {
               syncNeeded = true
             }
           }
+          storeCounters(batch)
 
           max_write_message_latency.add(write_message_total)
           max_write_enqueue_latency.add(write_enqueue_total)
         }
-        if( syncNeeded && sync ) {
-          appender.force
-        }
       } // end of log.appender { block }
 
       // now that data is logged.. locate message from the data in the logs
@@ -1145,7 +2007,48 @@ class LevelDBClient(store: LevelDBStore) {
           }
         }
       }
+
+      // The sync is done by the sync thread so we can move on to the next batch.
+      syncNeeded && sync
+    }
+  }
+
+  /**
+   * Appends the new messages of the units of work to the log stripes, a
+   * message goes to the stripe of the first collection it's enqueued to.
+   * The stripes write concurrently on their own threads.  Returns the
+   * time spent.
+   */
+  private def store_stripes(uows: Array[DelayableUOW]):Long = {
+    val start = System.nanoTime()
+    val records = new Array[ListBuffer[MessageRecord]](stripes.length)
+    uows.foreach { uow =>
+      uow.actions.foreach { case (msg, action) =>
+        val messageRecord = action.messageRecord
+        if (messageRecord != null && messageRecord.locator==null && !action.enqueues.isEmpty) {
+          val stripe = ((action.enqueues.head.queueKey % stripes.length).toInt + stripes.length) % stripes.length
+          if( records(stripe)==null ) {
+            records(stripe) = ListBuffer[MessageRecord]()
+          }
+          records(stripe) += messageRecord
+        }
+      }
     }
+    (0 until stripes.length).filter(records(_)!=null).map { i =>
+      val stripe = stripes(i)
+      val stripe_records = records(i)
+      stripeExecutors(i).submit(new Runnable() {
+        def run() = {
+          stripe.appender { appender =>
+            stripe_records.foreach { messageRecord =>
+              val p = appender.append(LOG_DATA, messageRecord.data)
+              messageRecord.locator = (p._1, messageRecord.data.length)
+            }
+          }
+        }
+      })
+    }.foreach(await(_))
+    System.nanoTime() - start
   }
 
   def getCollectionEntries(collectionKey: Long, firstSeq:Long, lastSeq:Long): Seq[(Buffer, EntryRecord.Buffer)] = {
@@ -1169,50 +2072,364 @@ class LevelDBClient(store: LevelDBStore) {
   }
 
   def getLastQueueEntrySeq(collectionKey: Long): Long = {
-    getLastCollectionEntryKey(collectionKey).map(_.bigEndianEditor().readLong()).getOrElse(0L)
+    collectionMeta.lastSeqOf(collectionKey)
   }
 
-  def getLastCollectionEntryKey(collectionKey: Long): Option[Buffer] = {
-    collectionMeta.get(collectionKey).flatMap(x=> Option(x.last_key)).map(new Buffer(_))
-  }
+  // The sequence up to which each topic's entries have been deleted and
+  // the sequence up to which they should be.  Only used on the write
+  // thread.
+  val topic_gc_positions = new LongLongHashMap()
+  val topic_gc_limits = new LongLongHashMap()
+  private var topic_gc_scheduled = false
+
+  // The number of topic entry sequences still waiting to be deleted.
+  @volatile
+  var topic_gc_backlog = 0L
 
   def gc(topicPositions:Seq[(Long, Long)]):Unit = {
 
     // Delete message refs for topics who's consumers have advanced..
-    if( !topicPositions.isEmpty ) {
-      retryUsingIndex {
-        index.write(new WriteOptions, max_index_write_latency) { batch =>
-          for( (topic, first) <- topicPositions ) {
-            val ro = new ReadOptions
-            ro.fillCache(true)
-            ro.verifyChecksums(verifyChecksums)
-            val start = encodeEntryKey(ENTRY_PREFIX, topic, 0)
-            val end =  encodeEntryKey(ENTRY_PREFIX, topic, first)
+    for( (topic, first) <- topicPositions ) {
+      if( first > topic_gc_limits.get(topic) ) {
+        topic_gc_limits.put(topic, first)
+      }
+    }
+    if( !topic_gc_scheduled ) {
+      gc_topics
+    }
+
+    gc_log(log, lastIndexSnapshotPos)
+    for( i <- 0 until stripes.length ) {
+      gc_log(stripes(i), stripeSnapshotPositions(i))
+    }
+  }
+
+  /**
+   * Deletes one batch of topic entries and, if there are more to delete,
+   * queues up the next batch behind the units of work that are waiting
+   * on the write thread.
+   */
+  private def gc_topics:Unit = {
+    if( !gc_topics_batch(store.topicGcBatchSize.max(1)) ) {
+      val executor = writeExecutor
+      if( executor!=null && !executor.isShutdown ) {
+        topic_gc_scheduled = true
+        try {
+          executor {
+            topic_gc_scheduled = false
+            if( store.isStarted ) {
+              gc_topics
+            }
+          }
+        } catch {
+          case e:RejectedExecutionException =>
+            topic_gc_scheduled = false
+        }
+      }
+    }
+  }
+
+  /**
+   * Deletes up to max_deletes topic entries in one index write batch.
+   * Returns true if no topic has entries left to delete.
+   */
+  private def gc_topics_batch(max_deletes:Int):Boolean = {
+    val topics = topic_gc_limits.keys
+    val positions = ListBuffer[(Long, Long)]()
+    var remaining = max_deletes
+    retryUsingIndex {
+      positions.clear()
+      remaining = max_deletes
+      index.write(new WriteOptions, max_index_write_latency) { batch =>
+        val ro = new ReadOptions
+        ro.fillCache(false)
+        ro.verifyChecksums(verifyChecksums)
+        for( topic <- topics ; if remaining > 0 && collectionMeta.contains(topic) ) {
+          val limit = topic_gc_limits.get(topic)
+          var position = topic_gc_positions.get(topic)
+          if( position < limit ) {
+            val start = encodeEntryKey(ENTRY_PREFIX, topic, position)
+            val end =  encodeEntryKey(ENTRY_PREFIX, topic, limit)
             index.cursorRange(start, end, ro) { case (key, value) =>
               val entry = EntryRecord.FACTORY.parseUnframed(value)
               batch.delete(key)
               logRefDecrement(entry.getValueLocation)
-              true
+              position = decodeEntrySeq(key) + 1
+              remaining -= 1
+              remaining > 0
+            }
+            if( remaining > 0 ) {
+              // We got to the end of the range.
+              position = limit
             }
+            positions += topic -> position
           }
         }
+        storeCounters(batch)
       }
     }
 
-    import collection.JavaConversions._
-    lastIndexSnapshotPos
-    val emptyJournals = log.log_infos.keySet.toSet -- logRefs.keySet
+    // Only move the positions once the deletes made it into the index.
+    for( (topic, position) <- positions ) {
+      topic_gc_positions.put(topic, position)
+    }
+    var backlog = 0L
+    for( topic <- topics ) {
+      if( collectionMeta.contains(topic) ) {
+        backlog += (topic_gc_limits.get(topic) - topic_gc_positions.get(topic)).max(0)
+      } else {
+        // The topic was removed with all it's entries.
+        topic_gc_limits.remove(topic)
+        topic_gc_positions.remove(topic)
+      }
+    }
+    topic_gc_backlog = backlog
+    backlog == 0
+  }
+
+  private def gc_log(log:RecordLog, snapshotPos:Long) = {
+    val emptyJournals = log.log_infos.map(_.position).filterNot(x => logRefs.contains(x))
 
     // We don't want to delete any journals that the index has not snapshot'ed or
     // the the
-    val deleteLimit = log.log_info(lastIndexSnapshotPos).map(_.position).
-          getOrElse(lastIndexSnapshotPos).min(log.appender_start)
+    val deleteLimit = log.log_info(snapshotPos).map(_.position).
+          getOrElse(snapshotPos).min(log.appender_start)
 
     emptyJournals.foreach { id =>
       if ( id < deleteLimit ) {
+        log.log_info(id).foreach(drop_relocations(_))
         log.delete(id)
       }
     }
   }
 
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Compaction: copies the records still in use out of mostly empty log
+  // files so that gc can delete the files.
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  // Maps the old positions of the records moved by the compactor to
+  // their new ones.  Messages loaded before they were moved still hold
+  // the old locators.  Updated on the write thread and read from the
+  // broker threads, so it's only used while holding it's lock.
+  val relocations = new LongLongHashMap()
+
+  def relocated(pos:Long):Long = relocations.synchronized {
+    if( relocations.isEmpty ) pos else relocations.get(pos, pos)
+  }
+
+  /**
+   * Drops the relocations of the records of a log file that is being
+   * deleted.
+   */
+  private def drop_relocations(info:LogInfo) = relocations.synchronized {
+    if( !relocations.isEmpty ) {
+      relocations.keys.filter(pos => pos >= info.position && pos < info.limit).foreach(relocations.remove(_))
+    }
+  }
+
+  /**
+   * A locator into a log file which has been deleted was relocated before
+   * the relocation got dropped, the index knows where it is now.
+   */
+  private def current_locator(key:Array[Byte], locator:(Long, Int)):(Long, Int) = {
+    if( log_file_info(locator._1).isDefined ) {
+      locator
+    } else {
+      index.get(key).map(decodeEntryRecord(_)).filter(_.hasValueLocation).map { record =>
+        (record.getValueLocation, locator._2)
+      }.getOrElse(locator)
+    }
+  }
+
+  def relocated(locator:(Long, Int)):(Long, Int) = {
+    val pos = relocated(locator._1)
+    if( pos == locator._1 ) locator else (pos, locator._2)
+  }
+
+  val compaction_copied_bytes = new atomic.AtomicLong()
+  val compaction_reclaimed_bytes = new atomic.AtomicLong()
+  @volatile
+  var compaction_progress = 100.0
+
+  /**
+   * Compacts the log files in which less than threshold of the bytes are
+   * still in use.  Copying is limited to rate bytes per second.  Runs on
+   * the caller's thread, the records are moved in small batches on the
+   * write thread.
+   */
+  def compact(threshold:Double, rate:Long):Unit = {
+    import collection.JavaConversions._
+    case class Candidate(log:RecordLog, info:LogInfo) {
+      var live = 0L
+    }
+
+    // Only rotated log files which are still referenced can be compacted.
+    // The log refs are only safe to look at from the write thread.
+    val candidates = await(writeExecutor.submit(new Callable[ju.TreeMap[Long, Candidate]] {
+      def call = {
+        val rc = new ju.TreeMap[Long, Candidate]()
+        (log +: stripes).foreach { log =>
+          log.log_infos.foreach { info =>
+            if( info.position != log.appender_start && logRefs.contains(info.position) ) {
+              rc.put(info.position, Candidate(log, info))
+            }
+          }
+        }
+        rc
+      }
+    }))
+    if( candidates.isEmpty ) {
+      return
+    }
+
+    def candidate_of(pos:Long) = {
+      Option(candidates.floorEntry(pos)).map(_.getValue).filter(x => pos < x.info.limit).getOrElse(null)
+    }
+    def cursorValues(func:(Array[Byte], EntryRecord.Buffer)=>Unit) = {
+      retryUsingIndex {
+        val ro = new ReadOptions
+        ro.fillCache(false)
+        ro.verifyChecksums(verifyChecksums)
+        index.snapshot { snapshot =>
+          ro.snapshot(snapshot)
+          index.cursorPrefixed(ENTRY_PREFIX_ARRAY, ro) { (key, value) =>
+            val record = decodeEntryRecord(value)
+            // Subscription acks and records don't reference messages.
+            if( record.hasValueLength ) {
+              func(key, record)
+            }
+            true
+          }
+        }
+      }
+    }
+
+    // Figure out how much of each file is still in use.  Messages that
+    // are in several collections get counted several times, so
+    // we can only under estimate how much can be reclaimed.
+    cursorValues { (key, record) =>
+      val candidate = candidate_of(record.getValueLocation)
+      if( candidate!=null ) {
+        candidate.live += RecordLog.LOG_HEADER_SIZE+record.getValueLength
+      }
+    }
+    val selected = candidates.values.filter(x => x.live < x.info.length*threshold).toList.sortBy(_.info.position)
+    if( selected.isEmpty ) {
+      return
+    }
+
+    val entries = new ju.HashMap[Long, ListBuffer[(Array[Byte], Long, Int)]]()
+    selected.foreach(x => entries.put(x.info.position, ListBuffer()))
+    cursorValues { (key, record) =>
+      val candidate = candidate_of(record.getValueLocation)
+      if( candidate!=null && entries.containsKey(candidate.info.position) ) {
+        entries.get(candidate.info.position) += ((key, record.getValueLocation, record.getValueLength))
+      }
+    }
+
+    val total = selected.map(_.live).sum
+    var done = 0L
+    val start = System.nanoTime()
+    compaction_progress = 0
+    try {
+      selected.foreach { candidate =>
+        debug("Compacting log file %s, %,d of it's %,d bytes are in use".format(
+          candidate.info.file, candidate.live, candidate.info.length))
+        entries.get(candidate.info.position).sortBy(_._2).grouped(COMPACTION_BATCH_SIZE).foreach { batch =>
+          done += await(writeExecutor.submit(new Callable[Long] {
+            def call = compact_batch(candidate.log, batch)
+          }))
+          compaction_progress = (done*100.0 / total).min(100.0)
+
+          // Keep the copy rate under the limit.
+          if( rate > 0 ) {
+            val sleep = (done*1000/rate) - (System.nanoTime()-start)/1000000
+            if( sleep > 0 ) {
+              Thread.sleep(sleep)
+            }
+          }
+        }
+        // gc deletes the file now that nothing references it anymore.
+        compaction_reclaimed_bytes.addAndGet(candidate.info.length)
+      }
+    } finally {
+      compaction_progress = 100.0
+    }
+  }
+
+  /**
+   * Moves the values of the entries which still reference records in
+   * the data log to the head of the data log.  Returns the number of
+   * bytes copied.
+   */
+  private def compact_batch(data_log:RecordLog, entries:Seq[(Array[Byte], Long, Int)]):Long = {
+    retryUsingIndex {
+      // Entries which were removed or updated since we looked them up stay as is.
+      val live = entries.flatMap { case (key, pos, len) =>
+        index.get(key).map(decodeEntryRecord(_)).filter(_.getValueLocation == pos).map(x => (key, x))
+      }
+      if( live.isEmpty ) {
+        0L
+      } else {
+        var copied = 0L
+        val moved = new LongLongHashMap()
+        data_log.appender { appender =>
+          live.foreach { case (_, record) =>
+            val pos = record.getValueLocation
+            if( relocated(pos) == pos && !moved.contains(pos) ) {
+              val data = data_log.read(pos, record.getValueLength).getOrElse {
+                throw new java.io.IOException("Could not read the record at position: "+pos)
+              }
+              moved.put(pos, appender.append(LOG_DATA, data)._1)
+              copied += record.getValueLength
+            }
+          }
+        }
+        relocations.synchronized {
+          moved.foreach { (pos, new_pos) =>
+            relocations.put(pos, new_pos)
+          }
+        }
+
+        log.appender { appender =>
+          index.write(new WriteOptions, max_index_write_latency) { batch =>
+            live.foreach { case (key, record) =>
+              val pos = record.getValueLocation
+              val new_pos = relocated(pos)
+              val (_, collectionKey, entryKey) = decodeEntryKey(key)
+
+              val log_record = new EntryRecord.Bean()
+              log_record.setCollectionKey(collectionKey)
+              log_record.setEntryKey(entryKey)
+              log_record.setValueLocation(new_pos)
+              log_record.setValueLength(record.getValueLength)
+              log_record.setPreviousValueLocation(pos)
+              appender.append(LOG_UPDATE_ENTRY, encodeEntryRecord(log_record.freeze()))
+
+              val index_record = record.copy()
+              index_record.setValueLocation(new_pos)
+              batch.put(key, encodeEntryRecord(index_record.freeze()).toByteArray)
+
+              logRefDecrement(pos)
+              logRefIncrement(new_pos)
+            }
+            storeCounters(batch)
+          }
+        }
+
+        // The old file can get deleted as soon as the next gc, so the
+        // moved records have to be on disk first.
+        if( sync ) {
+          data_log.force_flushed
+          log.force_flushed
+        }
+        compaction_copied_bytes.addAndGet(copied)
+        copied
+      }
+    }
+  }
+
 }
@@ -79,6 +79,7 @@ class LevelDBStoreView(val store:LevelDBStore) extends LevelDBStoreViewMBean {
   def getAsyncBufferSize = asyncBufferSize
   def getIndexDirectory = directory.getCanonicalPath
   def getLogDirectory = Option(logDirectory).getOrElse(directory).getCanonicalPath
+  def getLogStripeDirectories = db.client.stripes.map(_.directory.getCanonicalPath).mkString(",")
   def getIndexBlockRestartInterval = indexBlockRestartInterval
   def getIndexBlockSize = indexBlockSize
   def getIndexCacheSize = indexCacheSize
@@ -87,14 +88,41 @@ class LevelDBStoreView(val store:LevelDBStore) extends LevelDBStoreViewMBean {
   def getIndexMaxOpenFiles = indexMaxOpenFiles
   def getIndexWriteBufferSize = indexWriteBufferSize
   def getLogSize = logSize
+  def getLogMemoryMappedReads = logMemoryMappedReads
+  def getLogDirectWriteThreshold = logDirectWriteThreshold
+  def getLogDirectWriteBuffer = logDirectWriteBuffer
+  def getLogPreallocateCount = logPreallocateCount
+  def getLogRecycle = logRecycle
+  def getLogCompression = logCompression
   def getParanoidChecks = paranoidChecks
   def getSync = sync
   def getVerifyChecksums = verifyChecksums
 
   def getUowClosedCounter = db.uowClosedCounter
   def getUowCanceledCounter = db.uowCanceledCounter
+
+  def getFlushDelay = flushDelay
+  def getAdaptiveFlushDelay = adaptiveFlushDelay
+  def getFlushDelayHitRate = {
+    val canceled = db.flush_delay_policy.canceled_total
+    val total = canceled + db.flush_delay_policy.flushed_total
+    if( total == 0 ) 0.0 else canceled * 100.0 / total
+  }
+  def getFlushDelays = {
+    import collection.JavaConversions._
+    val names = store.synchronized {
+      queues.map(x => x._2.key -> x._1.getQualifiedName) ++ topics.map(x => x._2.key -> x._1.getQualifiedName)
+    }
+    db.flush_delay_policy.destinations.toSeq.flatMap { case (key, stats) =>
+      names.get(key).map { name =>
+        "%s: delay=%d ms, hit rate=%.2f%%, dequeue latency=%.3f ms".format(name, stats.delay, stats.hit_rate, stats.latency)
+      }
+    }.sorted.mkString("\n")
+  }
   def getUowStoringCounter = db.uowStoringCounter
   def getUowStoredCounter = db.uowStoredCounter
+  def getLogSyncCounter = db.client.log_sync_counter.get
+  def getLogSyncedStoreCounter = db.client.log_synced_store_counter.get
 
   def getUowMaxCompleteLatency = db.uow_complete_latency.get
   def getMaxIndexWriteLatency = db.client.max_index_write_latency.get
@@ -108,6 +136,59 @@ class LevelDBStoreView(val store:LevelDBStore) extends LevelDBStoreViewMBean {
   def resetMaxLogFlushLatency = db.client.log.max_log_flush_latency.reset
   def resetMaxLogRotateLatency = db.client.log.max_log_rotate_latency.reset
 
+  def getUowCompleteLatencyCount = db.uow_complete_latency.interval.count
+  def getUowCompleteLatencyP50 = db.uow_complete_latency.interval.percentile(50)
+  def getUowCompleteLatencyP99 = db.uow_complete_latency.interval.percentile(99)
+  def getUowCompleteLatencyP999 = db.uow_complete_latency.interval.percentile(99.9)
+  def getIndexWriteLatencyCount = db.client.max_index_write_latency.interval.count
+  def getIndexWriteLatencyP50 = db.client.max_index_write_latency.interval.percentile(50)
+  def getIndexWriteLatencyP99 = db.client.max_index_write_latency.interval.percentile(99)
+  def getIndexWriteLatencyP999 = db.client.max_index_write_latency.interval.percentile(99.9)
+  def getLogWriteLatencyCount = db.client.log.max_log_write_latency.interval.count
+  def getLogWriteLatencyP50 = db.client.log.max_log_write_latency.interval.percentile(50)
+  def getLogWriteLatencyP99 = db.client.log.max_log_write_latency.interval.percentile(99)
+  def getLogWriteLatencyP999 = db.client.log.max_log_write_latency.interval.percentile(99.9)
+  def getLogFlushLatencyCount = db.client.log.max_log_flush_latency.interval.count
+  def getLogFlushLatencyP50 = db.client.log.max_log_flush_latency.interval.percentile(50)
+  def getLogFlushLatencyP99 = db.client.log.max_log_flush_latency.interval.percentile(99)
+  def getLogFlushLatencyP999 = db.client.log.max_log_flush_latency.interval.percentile(99.9)
+  def getLogRotateLatencyCount = db.client.log.max_log_rotate_latency.interval.count
+  def getLogRotateLatencyP50 = db.client.log.max_log_rotate_latency.interval.percentile(50)
+  def getLogRotateLatencyP99 = db.client.log.max_log_rotate_latency.interval.percentile(99)
+  def getLogRotateLatencyP999 = db.client.log.max_log_rotate_latency.interval.percentile(99.9)
+
+  def getLatencyReportFile = Option(latencyReportFile).map(_.getCanonicalPath).getOrElse(null)
+  def getLatencyReportInterval = latencyReportInterval
+
+  def getCursorPrefetch = cursorPrefetch
+  def getMessageCacheSize = messageCacheSize
+  def getMessageCacheEviction = messageCacheEviction
+  private def message_cache = Option(db.client.message_cache)
+  def getMessageCacheHits = message_cache.map(_.hits.get).getOrElse(0L)
+  def getMessageCacheMisses = message_cache.map(_.misses.get).getOrElse(0L)
+  def getMessageCacheEvictions = message_cache.map(_.evictions.get).getOrElse(0L)
+  def getMessageCacheUsage = message_cache.map(_.size).getOrElse(0L)
+
+  def getLogReplayProgress = db.client.replay_progress
+  def getLogReplayRemaining = db.client.replay_limit-db.client.replay_position
+
+  def getIndexCheckpointBytes = indexCheckpointBytes
+  def getIndexCheckpointInterval = indexCheckpointInterval
+  def getMaxIndexCheckpointLatency = db.client.max_index_checkpoint_latency.get
+  def resetMaxIndexCheckpointLatency = db.client.max_index_checkpoint_latency.reset
+
+  def getCompactionThreshold = compactionThreshold
+  def getCompactionRate = compactionRate
+  def getCompactionInterval = compactionInterval
+  def getCompactionProgress = db.client.compaction_progress
+  def getCompactionCopiedBytes = db.client.compaction_copied_bytes.get
+  def getCompactionReclaimedBytes = db.client.compaction_reclaimed_bytes.get
+
+  def getTopicGcBatchSize = topicGcBatchSize
+  def getTopicGcBacklog = db.client.topic_gc_backlog
+  def getReplicationLagBytes = db.client.replication_lag_bytes
+  def getReplicationLagTime = db.client.replication_lag_time
+
   def getIndexStats = db.client.index.getProperty("leveldb.stats")
 }
 
@@ -122,10 +203,22 @@ class LevelDBStore extends ServiceSupport with BrokerServiceAware with Persisten
   var directory: File = null
   @BeanProperty
   var logDirectory: File = null
+  @BeanProperty
+  var logStripeDirectories: String = null
   
   @BeanProperty
   var logSize: Long = 1024 * 1024 * 100
   @BeanProperty
+  var logMemoryMappedReads: Boolean = false
+  @BeanProperty
+  var logDirectWriteThreshold: Int = RecordLog.BYPASS_BUFFER_SIZE
+  @BeanProperty
+  var logDirectWriteBuffer: Boolean = false
+  @BeanProperty
+  var logPreallocateCount: Int = 0
+  @BeanProperty
+  var logRecycle: Boolean = false
+  @BeanProperty
   var indexFactory: String = "org.fusesource.leveldbjni.JniDBFactory, org.iq80.leveldb.impl.Iq80DBFactory"
   @BeanProperty
   var sync: Boolean = true
@@ -148,12 +241,36 @@ class LevelDBStore extends ServiceSupport with BrokerServiceAware with Persisten
   @BeanProperty
   var indexCacheSize: Long = 1024 * 1024 * 256L
   @BeanProperty
+  var messageCacheSize: Long = 0
+  @BeanProperty
+  var messageCacheEviction: String = "lru"
+  @BeanProperty
+  var cursorPrefetch: Boolean = false
+  @BeanProperty
+  var indexCheckpointBytes: Long = 1024 * 1024 * 100
+  @BeanProperty
+  var indexCheckpointInterval: Long = 0
+  @BeanProperty
+  var compactionThreshold: Double = 0
+  @BeanProperty
+  var compactionRate: Long = 1024 * 1024 * 10
+  @BeanProperty
+  var compactionInterval: Long = 1000 * 60 * 5
+  @BeanProperty
+  var topicGcBatchSize: Int = 1000
+  @BeanProperty
   var flushDelay = 1000*5
   @BeanProperty
+  var adaptiveFlushDelay = false
+  @BeanProperty
   var asyncBufferSize = 1024*1024*4
   @BeanProperty
   var monitorStats = false
   @BeanProperty
+  var latencyReportFile: File = null
+  @BeanProperty
+  var latencyReportInterval: Long = 1000 * 60
+  @BeanProperty
   var failIfLocked = false
 
   var purgeOnStatup: Boolean = false
@@ -180,11 +297,17 @@ class LevelDBStore extends ServiceSupport with BrokerServiceAware with Persisten
   var lock_file: LockFile = _
 
   var snappyCompressLogs = false
+  var snappyCompressLogBlocks = false
+
+  def configureLogCompression = {
+    snappyCompressLogs = logCompression.toLowerCase == "snappy" && Snappy != null
+    snappyCompressLogBlocks = logCompression.toLowerCase == "snappy-block" && Snappy != null
+  }
 
   def doStart: Unit = {
     import FileSupport._
 
-    snappyCompressLogs = logCompression.toLowerCase == "snappy" && Snappy != null
+    configureLogCompression
     debug("starting")
     if ( lock_file==null ) {
       lock_file = new LockFile(directory / "lock", true)
@@ -464,7 +587,7 @@ class LevelDBStore extends ServiceSupport with BrokerServiceAware with Persisten
     }
 
     def recoverNextMessages(maxReturned: Int, listener: MessageRecoveryListener): Unit = {
-      cursorPosition = db.cursorMessages(key, LimitingRecoveryListener(maxReturned, listener), cursorPosition)
+      cursorPosition = db.cursorMessages(key, LimitingRecoveryListener(maxReturned, listener), cursorPosition, maxReturned)
     }
 
     override def setBatch(id: MessageId): Unit = {
@@ -597,7 +720,7 @@ class LevelDBStore extends ServiceSupport with BrokerServiceAware with Persisten
     
     def recoverNextMessages(clientId: String, subscriptionName: String, maxReturned: Int, listener: MessageRecoveryListener): Unit = {
       lookup(clientId, subscriptionName).foreach { sub =>
-        sub.cursorPosition = db.cursorMessages(key,  LimitingRecoveryListener(maxReturned, listener), sub.cursorPosition.max(sub.lastAckPosition+1))
+        sub.cursorPosition = db.cursorMessages(key,  LimitingRecoveryListener(maxReturned, listener), sub.cursorPosition.max(sub.lastAckPosition+1), maxReturned)
       }
     }
     
@@ -35,6 +35,9 @@ public interface LevelDBStoreViewMBean {
     @MBeanInfo("The directory holding the store log data.")
     String getLogDirectory();
 
+    @MBeanInfo("The directories of the logs the message data is striped across.")
+    String getLogStripeDirectories();
+
     @MBeanInfo("The size the log files are allowed to grow to.")
     long getLogSize();
 
@@ -71,6 +74,24 @@ public interface LevelDBStoreViewMBean {
     @MBeanInfo("The maximum amount of async writes to buffer up")
     int getAsyncBufferSize();
 
+    @MBeanInfo("Are reads of rotated log files served from memory mapped files.")
+    boolean getLogMemoryMappedReads();
+
+    @MBeanInfo("Log records larger than this are written directly to the log file instead of being buffered.")
+    int getLogDirectWriteThreshold();
+
+    @MBeanInfo("Are log records buffered off heap before they are written to the log file.")
+    boolean getLogDirectWriteBuffer();
+
+    @MBeanInfo("How many log files are created and sized ahead of time in the background.")
+    int getLogPreallocateCount();
+
+    @MBeanInfo("Are deleted log files reused as the preallocated log files.")
+    boolean getLogRecycle();
+
+    @MBeanInfo("How the log is compressed: none, snappy to compress each message or snappy-block to compress the log in blocks.")
+    String getLogCompression();
+
     @MBeanInfo("The number of units of work which have been closed.")
     long getUowClosedCounter();
     @MBeanInfo("The number of units of work which have been canceled.")
@@ -80,15 +101,29 @@ public interface LevelDBStoreViewMBean {
     @MBeanInfo("The number of units of work which completed getting stored")
     long getUowStoredCounter();
 
-    @MBeanInfo("Gets and resets the maximum time (in ms) a unit of work took to complete.")
+    @MBeanInfo("The maximum time (in ms) a unit of work is delayed so that a dequeue can cancel out its enqueues.")
+    int getFlushDelay();
+    @MBeanInfo("Is the flush delay picked per destination based on how fast the destination gets dequeued.")
+    boolean getAdaptiveFlushDelay();
+    @MBeanInfo("The percentage of delayed enqueues which were canceled out by a dequeue.")
+    double getFlushDelayHitRate();
+    @MBeanInfo("The flush delay, hit rate and dequeue latency of each destination.")
+    String getFlushDelays();
+
+    @MBeanInfo("The number of times the log has been synced to disk.")
+    long getLogSyncCounter();
+    @MBeanInfo("The number of store batches that have been covered by log syncs.")
+    long getLogSyncedStoreCounter();
+
+    @MBeanInfo("Gets and resets the maximum time (in ms) a unit of work took to complete, the latency percentiles start over.")
     double resetUowMaxCompleteLatency();
-    @MBeanInfo("Gets and resets the maximum time (in ms) an index write batch took to execute.")
+    @MBeanInfo("Gets and resets the maximum time (in ms) an index write batch took to execute, the latency percentiles start over.")
     double resetMaxIndexWriteLatency();
-    @MBeanInfo("Gets and resets the maximum time (in ms) a log write took to execute (includes the index write latency).")
+    @MBeanInfo("Gets and resets the maximum time (in ms) a log write took to execute (includes the index write latency), the latency percentiles start over.")
     double resetMaxLogWriteLatency();
-    @MBeanInfo("Gets and resets the maximum time (in ms) a log flush took to execute.")
+    @MBeanInfo("Gets and resets the maximum time (in ms) a log flush took to execute, the latency percentiles start over.")
     double resetMaxLogFlushLatency();
-    @MBeanInfo("Gets and resets the maximum time (in ms) a log rotation took to perform.")
+    @MBeanInfo("Gets and resets the maximum time (in ms) a log rotation took to perform, the latency percentiles start over.")
     double resetMaxLogRotateLatency();
 
     @MBeanInfo("Gets the maximum time (in ms) a unit of work took to complete.")
@@ -102,6 +137,105 @@ public interface LevelDBStoreViewMBean {
     @MBeanInfo("Gets the maximum time (in ms) a log rotation took to perform.")
     double getMaxLogRotateLatency();
 
+    @MBeanInfo("The number of units of work completed since the last latency reset.")
+    long getUowCompleteLatencyCount();
+    @MBeanInfo("The median time (in ms) a unit of work took to complete since the last latency reset.")
+    double getUowCompleteLatencyP50();
+    @MBeanInfo("The 99th percentile of the time (in ms) a unit of work took to complete since the last latency reset.")
+    double getUowCompleteLatencyP99();
+    @MBeanInfo("The 99.9th percentile of the time (in ms) a unit of work took to complete since the last latency reset.")
+    double getUowCompleteLatencyP999();
+    @MBeanInfo("The number of index write batches executed since the last latency reset.")
+    long getIndexWriteLatencyCount();
+    @MBeanInfo("The median time (in ms) an index write batch took to execute since the last latency reset.")
+    double getIndexWriteLatencyP50();
+    @MBeanInfo("The 99th percentile of the time (in ms) an index write batch took to execute since the last latency reset.")
+    double getIndexWriteLatencyP99();
+    @MBeanInfo("The 99.9th percentile of the time (in ms) an index write batch took to execute since the last latency reset.")
+    double getIndexWriteLatencyP999();
+    @MBeanInfo("The number of log writes executed since the last latency reset.")
+    long getLogWriteLatencyCount();
+    @MBeanInfo("The median time (in ms) a log write took to execute since the last latency reset.")
+    double getLogWriteLatencyP50();
+    @MBeanInfo("The 99th percentile of the time (in ms) a log write took to execute since the last latency reset.")
+    double getLogWriteLatencyP99();
+    @MBeanInfo("The 99.9th percentile of the time (in ms) a log write took to execute since the last latency reset.")
+    double getLogWriteLatencyP999();
+    @MBeanInfo("The number of log flushes executed since the last latency reset.")
+    long getLogFlushLatencyCount();
+    @MBeanInfo("The median time (in ms) a log flush took to execute since the last latency reset.")
+    double getLogFlushLatencyP50();
+    @MBeanInfo("The 99th percentile of the time (in ms) a log flush took to execute since the last latency reset.")
+    double getLogFlushLatencyP99();
+    @MBeanInfo("The 99.9th percentile of the time (in ms) a log flush took to execute since the last latency reset.")
+    double getLogFlushLatencyP999();
+    @MBeanInfo("The number of log rotations performed since the last latency reset.")
+    long getLogRotateLatencyCount();
+    @MBeanInfo("The median time (in ms) a log rotation took to perform since the last latency reset.")
+    double getLogRotateLatencyP50();
+    @MBeanInfo("The 99th percentile of the time (in ms) a log rotation took to perform since the last latency reset.")
+    double getLogRotateLatencyP99();
+    @MBeanInfo("The 99.9th percentile of the time (in ms) a log rotation took to perform since the last latency reset.")
+    double getLogRotateLatencyP999();
+
+    @MBeanInfo("The CSV file that latency percentiles get appended to, null if disabled.")
+    String getLatencyReportFile();
+    @MBeanInfo("How often (in ms) latency percentiles get appended to the latency report file.")
+    long getLatencyReportInterval();
+
+    @MBeanInfo("Do cursors load their next batch of messages in the background.")
+    boolean getCursorPrefetch();
+
+    @MBeanInfo("The maximum size in bytes of the decoded message cache, 0 if disabled.")
+    long getMessageCacheSize();
+    @MBeanInfo("The eviction policy of the decoded message cache: lru or fifo.")
+    String getMessageCacheEviction();
+    @MBeanInfo("The number of message loads served from the message cache.")
+    long getMessageCacheHits();
+    @MBeanInfo("The number of message loads that missed the message cache.")
+    long getMessageCacheMisses();
+    @MBeanInfo("The number of messages evicted from the message cache.")
+    long getMessageCacheEvictions();
+    @MBeanInfo("The size in bytes of the messages held in the message cache.")
+    long getMessageCacheUsage();
+
+    @MBeanInfo("The percentage of the log that has been replayed by the last recovery.")
+    double getLogReplayProgress();
+    @MBeanInfo("The number of log bytes that the last recovery still has to replay.")
+    long getLogReplayRemaining();
+
+    @MBeanInfo("The number of bytes logged after which the index gets snapshot, 0 if disabled.")
+    long getIndexCheckpointBytes();
+    @MBeanInfo("The time (in ms) after which the index gets snapshot if anything was logged, 0 if disabled.")
+    long getIndexCheckpointInterval();
+    @MBeanInfo("Gets the maximum time (in ms) an index snapshot blocked the index.")
+    double getMaxIndexCheckpointLatency();
+    @MBeanInfo("Gets and resets the maximum time (in ms) an index snapshot blocked the index.")
+    double resetMaxIndexCheckpointLatency();
+
+    @MBeanInfo("Log files in which less than this fraction of the data is in use get compacted, 0 if disabled.")
+    double getCompactionThreshold();
+    @MBeanInfo("The maximum number of bytes per second the compactor copies.")
+    long getCompactionRate();
+    @MBeanInfo("How often (in ms) the compactor looks for log files to compact.")
+    long getCompactionInterval();
+    @MBeanInfo("The percentage of the current compaction run that is done, 100 if idle.")
+    double getCompactionProgress();
+    @MBeanInfo("The number of bytes the compactor has copied.")
+    long getCompactionCopiedBytes();
+    @MBeanInfo("The size of the log files the compactor has freed up for deletion.")
+    long getCompactionReclaimedBytes();
+
+    @MBeanInfo("The maximum number of topic entries gc deletes in one index write batch.")
+    int getTopicGcBatchSize();
+    @MBeanInfo("The number of topic entry sequences still waiting to be deleted by gc.")
+    long getTopicGcBacklog();
+
+    @MBeanInfo("The number of log bytes that have not been replicated yet.")
+    long getReplicationLagBytes();
+    @MBeanInfo("How long (in ms) the oldest log data that has not been replicated yet has been waiting.")
+    long getReplicationLagTime();
+
     @MBeanInfo("Gets the index statistics.")
     String getIndexStats();
 }
@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb
+
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicLong
+import util.Log
+
+object LogShipper extends Log
+
+/**
+ * <p>
+ * Runs the tasks that copy the log to a remote file system on a
+ * background thread, in order, so that the local log writes don't have
+ * to wait on the remote one.  Up to max_queued bytes of data can be
+ * waiting to be shipped, past that the writers block until the shipper
+ * catches up.
+ * </p>
+ * <p>
+ * Once a task fails the shipper stops running them since the remote copy
+ * can't be continued, the failure gets rethrown to the writers.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class LogShipper(name:String, max_queued:Long) {
+  import LogShipper._
+
+  case class Task(size:Int, func:()=>Unit) {
+    val created = System.nanoTime()
+    var done = false
+  }
+
+  private val tasks = new java.util.ArrayDeque[Task]()
+  private var queued = 0L
+  private var stopped = false
+  @volatile
+  private var failure:Throwable = _
+
+  val shipped_bytes = new AtomicLong()
+
+  private val thread = new Thread(name) {
+    setDaemon(true)
+    override def run() = ship_tasks
+  }
+  thread.start()
+
+  private def ship_tasks:Unit = {
+    while( true ) {
+      // Leave the task at the head of the queue while it runs so it
+      // counts towards the lag.
+      val task = tasks.synchronized {
+        while( tasks.isEmpty && !stopped ) {
+          tasks.wait()
+        }
+        if( tasks.isEmpty ) {
+          return
+        }
+        tasks.peek()
+      }
+      if( failure == null ) {
+        try {
+          task.func()
+          shipped_bytes.addAndGet(task.size)
+        } catch {
+          case e:Throwable =>
+            warn(e, "Log shipping failed: "+e)
+            failure = e
+        }
+      }
+      tasks.synchronized {
+        tasks.poll()
+        queued -= task.size
+        task.done = true
+        tasks.notifyAll()
+      }
+    }
+  }
+
+  def check_failure = {
+    val e = failure
+    if( e != null ) {
+      throw new IOException("Log shipping failed: "+e, e)
+    }
+  }
+
+  /**
+   * Queues up shipping size bytes of data, blocks while the queue is full.
+   */
+  def ship(size:Int)(func: =>Unit):Unit = {
+    check_failure
+    tasks.synchronized {
+      // Always let one task in even if it's larger than the limit.
+      while( queued > 0 && queued+size > max_queued && failure==null ) {
+        tasks.wait()
+      }
+      enqueue(Task(size, func _))
+    }
+  }
+
+  /**
+   * Queues up a task that does not ship any data.
+   */
+  def execute(func: =>Unit):Unit = tasks.synchronized {
+    enqueue(Task(0, func _))
+  }
+
+  /**
+   * Runs the task after all the previously queued tasks and waits for it.
+   */
+  def sync(func: =>Unit):Unit = {
+    val task = Task(0, func _)
+    tasks.synchronized {
+      enqueue(task)
+      while( !task.done ) {
+        tasks.wait()
+      }
+    }
+    check_failure
+  }
+
+  private def enqueue(task:Task) = {
+    if( stopped ) {
+      throw new IOException("The log shipper is stopped")
+    }
+    tasks.add(task)
+    queued += task.size
+    tasks.notifyAll()
+  }
+
+  /**
+   * The number of bytes waiting to be shipped.
+   */
+  def lag_bytes = tasks.synchronized { queued }
+
+  /**
+   * How long (in ms) the oldest task has been waiting to complete.
+   */
+  def lag_time = tasks.synchronized {
+    if( tasks.isEmpty ) 0L else (System.nanoTime() - tasks.peek().created) / 1000000
+  }
+
+  /**
+   * Ships the queued tasks and stops the background thread.
+   */
+  def stop = {
+    tasks.synchronized {
+      stopped = true
+      tasks.notifyAll()
+    }
+    thread.join()
+  }
+
+}
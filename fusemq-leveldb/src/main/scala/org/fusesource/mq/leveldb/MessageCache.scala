@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb
+
+import java.{util=>ju}
+import java.util.concurrent.atomic.AtomicLong
+import org.apache.activemq.command.Message
+
+/**
+ * <p>
+ * A cache of decoded messages keyed by their (position, length) data
+ * locator in the log.  It is bounded by the total size of the cached
+ * messages.  Entries are evicted in least recently used order
+ * or in insertion order when lru is not set.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class MessageCache(val max_size:Long, val lru:Boolean) {
+
+  case class CacheEntry(message:Message, size:Int)
+
+  val hits = new AtomicLong()
+  val misses = new AtomicLong()
+  val evictions = new AtomicLong()
+
+  private var cached_size = 0L
+  private val entries = new ju.LinkedHashMap[(Long, Int), CacheEntry](16, 0.75f, lru)
+
+  def size = entries.synchronized { cached_size }
+
+  /**
+   * Returns a copy of the cached message so that callers are free to
+   * modify it, or null if it's not cached.
+   */
+  def get(locator:(Long, Int)):Message = {
+    val entry = entries.synchronized { entries.get(locator) }
+    if( entry==null ) {
+      misses.incrementAndGet()
+      null
+    } else {
+      hits.incrementAndGet()
+      entry.message.copy()
+    }
+  }
+
+  def put(locator:(Long, Int), message:Message) = {
+    val size = message.getSize
+    if( size <= max_size ) {
+      val entry = CacheEntry(message.copy(), size)
+      entries.synchronized {
+        val previous = entries.put(locator, entry)
+        if( previous!=null ) {
+          cached_size -= previous.size
+        }
+        cached_size += size
+        val i = entries.values().iterator()
+        while( cached_size > max_size && i.hasNext ) {
+          cached_size -= i.next().size
+          i.remove()
+          evictions.incrementAndGet()
+        }
+      }
+    }
+  }
+
+  def clear = entries.synchronized {
+    entries.clear()
+    cached_size = 0
+  }
+
+}
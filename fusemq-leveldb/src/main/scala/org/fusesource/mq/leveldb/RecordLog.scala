@@ -21,16 +21,17 @@ import java.{lang=>jl}
 import java.{util=>ju}
 
 import java.util.zip.CRC32
-import java.util.Map.Entry
-import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger, AtomicLong}
+import java.util.concurrent.ConcurrentHashMap
+import java.nio.{ByteBuffer, MappedByteBuffer}
+import java.nio.channels.FileChannel
 import java.io._
 import org.fusesource.hawtbuf.{DataByteArrayInputStream, DataByteArrayOutputStream, Buffer}
 import org.fusesource.hawtdispatch.BaseRetained
 import org.fusesource.mq.leveldb.util.FileSupport._
 import org.apache.activemq.util.LRUCache
 import util.TimeMetric._
-import util.{TimeMetric, Log}
-import java.util.TreeMap
+import util.{DirectBufferPool, TimeMetric, Log}
 
 object RecordLog extends Log {
 
@@ -51,10 +52,159 @@ object RecordLog extends Log {
   val BUFFER_SIZE = 1024*512
   val BYPASS_BUFFER_SIZE = 1024*16
 
+  // Batched reads merge records that are at most this far apart..
+  val READ_COALESCE_GAP = 1024*16
+  // into reads of up to this size.
+  val READ_COALESCE_LIMIT = 1024*1024
+
   case class LogInfo(file:File, position:Long, length:Long) {
     def limit = position+length
   }
 
+  // Block compressed log files hold a sequence of snappy compressed frames
+  // instead of the records themselves:
+  // frame := header + compressed data
+  //
+  // header :=
+  //   'S'               : int8     // Start of Frame Magic
+  //   length            : uint32   // the uncompressed length
+  //   compressed_length : uint32   // the length of the compressed data
+  //   checksum          : uint32   // crc32c of the compressed data
+  //
+  // Uncompressed, the frames are the same records a plain log file holds
+  // so the record positions don't change.  Each write buffer flush
+  // becomes one frame.
+  val BLOCK_HEADER_PREFIX = 'S'.toByte
+  val BLOCK_HEADER_SIZE = 13
+
+  // The number of decompressed blocks a log keeps cached.
+  val BLOCK_CACHE_SIZE = 32
+
+  // How many log files a log keeps open for reads, not counting the
+  // memory mapped ones.
+  val READER_CACHE_SIZE = 100
+
+  // Log files which have been created and sized ahead of time get this
+  // suffix appended until they become an appender.
+  val PREALLOCATED_SUFFIX = ".prealloc"
+
+  /**
+   * Where an uncompressed block starts and where it's frame sits in the
+   * log file.
+   */
+  case class Block(offset:Long, length:Int, file_offset:Long, compressed_length:Int, checksum:Int) {
+    def limit = offset+length
+    def file_limit = file_offset+BLOCK_HEADER_SIZE+compressed_length
+  }
+
+  class BlockTable {
+    private val blocks = new java.util.ArrayList[Block]()
+
+    def add(block:Block) = this.synchronized {
+      blocks.add(block)
+    }
+
+    def limit = this.synchronized {
+      if( blocks.isEmpty ) 0L else blocks.get(blocks.size-1).limit
+    }
+
+    def file_limit = this.synchronized {
+      if( blocks.isEmpty ) 0L else blocks.get(blocks.size-1).file_limit
+    }
+
+    /**
+     * Returns the block holding the uncompressed offset or null.
+     */
+    def find(offset:Long):Block = this.synchronized {
+      var low = 0
+      var high = blocks.size-1
+      while( low <= high ) {
+        val mid = (low+high) >>> 1
+        val block = blocks.get(mid)
+        if( offset < block.offset ) {
+          high = mid-1
+        } else if( offset >= block.limit ) {
+          low = mid+1
+        } else {
+          return block
+        }
+      }
+      null
+    }
+
+    /**
+     * Maps an uncompressed offset at a block boundary to the file offset
+     * of the block's frame.
+     */
+    def file_offset(offset:Long):Option[Long] = this.synchronized {
+      if( offset == limit ) {
+        Some(file_limit)
+      } else {
+        Option(find(offset)).filter(_.offset == offset).map(_.file_offset)
+      }
+    }
+  }
+
+  // Only the current appenders hold a direct write buffer, so a couple
+  // get reused across the log rotations.
+  val DIRECT_BUFFER_POOL = new DirectBufferPool(BUFFER_SIZE+LOG_HEADER_SIZE, 4)
+
+  /**
+   * Where a log appender batches up records before they get written
+   * to the log file.
+   */
+  trait WriteBuffer {
+    def position:Int
+    def capacity:Int
+    def write_record(kind:Byte, checksum:Int, data:Buffer):Unit
+    /**
+     * Returns the buffered records.  The returned buffer is only valid
+     * until the next reset.
+     */
+    def buffered:ByteBuffer
+    def reset:Unit
+    def release:Unit = {}
+  }
+
+  class HeapWriteBuffer extends WriteBuffer {
+    val out = new DataByteArrayOutputStream(BUFFER_SIZE+LOG_HEADER_SIZE)
+    def position = out.position()
+    def capacity = Int.MaxValue
+    def write_record(kind:Byte, checksum:Int, data:Buffer) = {
+      out.writeByte(LOG_HEADER_PREFIX)
+      out.writeByte(kind)
+      out.writeInt(checksum)
+      out.writeInt(data.length)
+      out.write(data.data, data.offset, data.length)
+    }
+    def buffered = out.toBuffer.toByteBuffer
+    def reset = out.reset()
+  }
+
+  /**
+   * Buffers the records off heap so that the channel writes don't need
+   * to copy them into a temporary direct buffer first.
+   */
+  class DirectWriteBuffer extends WriteBuffer {
+    val buffer = DIRECT_BUFFER_POOL.acquire
+    def position = buffer.position()
+    def capacity = buffer.capacity()
+    def write_record(kind:Byte, checksum:Int, data:Buffer) = {
+      buffer.put(LOG_HEADER_PREFIX)
+      buffer.put(kind)
+      buffer.putInt(checksum)
+      buffer.putInt(data.length)
+      buffer.put(data.data, data.offset, data.length)
+    }
+    def buffered = {
+      val rc = buffer.duplicate()
+      rc.flip()
+      rc
+    }
+    def reset = buffer.clear()
+    override def release = DIRECT_BUFFER_POOL.release(buffer)
+  }
+
   def encode_long(a1:Long) = {
     val out = new DataByteArrayOutputStream(8)
     out.writeLong(a1)
@@ -66,6 +216,24 @@ object RecordLog extends Log {
     in.readLong()
   }
 
+  /**
+   * Eagerly releases a memory mapping instead of waiting for the
+   * buffer to get GCed.  Not all JVMs support this, in which case
+   * we fall back to letting the GC unmap it.
+   */
+  def unmap(buffer:MappedByteBuffer):Unit = {
+    try {
+      val cleanerMethod = buffer.getClass.getMethod("cleaner")
+      cleanerMethod.setAccessible(true)
+      val cleaner = cleanerMethod.invoke(buffer)
+      if( cleaner!=null ) {
+        cleaner.getClass.getMethod("clean").invoke(cleaner)
+      }
+    } catch {
+      case e:Throwable => debug("Could not unmap the log file buffer: "+e)
+    }
+  }
+
 }
 
 case class RecordLog(directory: File, logSuffix:String) {
@@ -77,25 +245,203 @@ case class RecordLog(directory: File, logSuffix:String) {
   var current_appender:LogAppender = _
   var verify_checksums = false
   var sync = false
-
-  val log_infos = new TreeMap[Long, LogInfo]()
+  var mmap_reads = false
+  var direct_write_threshold = BYPASS_BUFFER_SIZE
+  var direct_write_buffer = false
+  var compress_blocks = false
+  // The position of the first record of a new log.
+  var start_position = 0L
+  // Should open cut off the partial UOW at the end of the last log?  Not
+  // when something else is still appending to it.
+  var truncate_on_open = true
+  // How many log files get created and sized in the background ahead of
+  // time so that a log rotation does not wait on the file system.
+  var preallocate_logs = 0
+  // Should deleted log files get reused as the preallocated ones?
+  var recycle_logs = false
+
+  // The log files sorted by position.  It gets replaced, never modified,
+  // under the log_mutex so lookups don't need to lock.
+  @volatile
+  private var log_info_array = new Array[LogInfo](0)
+
+  def log_infos:Seq[LogInfo] = log_info_array
 
   object log_mutex
 
+  /**
+   * Returns the index of the log file holding pos or -1.
+   */
+  private def floor_index(infos:Array[LogInfo], pos:Long) = {
+    var low = 0
+    var high = infos.length-1
+    while( low <= high ) {
+      val mid = (low+high) >>> 1
+      if( infos(mid).position <= pos ) {
+        low = mid+1
+      } else {
+        high = mid-1
+      }
+    }
+    high
+  }
+
+  /**
+   * Adds or replaces the info of a log file.
+   */
+  def put_log_info(info:LogInfo) = log_mutex.synchronized {
+    val infos = log_info_array
+    val i = floor_index(infos, info.position)
+    log_info_array = if( i >= 0 && infos(i).position == info.position ) {
+      val rc = infos.clone()
+      rc(i) = info
+      rc
+    } else {
+      val rc = new Array[LogInfo](infos.length+1)
+      System.arraycopy(infos, 0, rc, 0, i+1)
+      rc(i+1) = info
+      System.arraycopy(infos, i+1, rc, i+2, infos.length-i-1)
+      rc
+    }
+  }
+
+  private def remove_log_info(position:Long) = log_mutex.synchronized {
+    log_info_array = log_info_array.filterNot(_.position == position)
+  }
+
+  // The preallocated log files, ready to become the next appender.
+  private val preallocated = new ju.LinkedList[File]()
+  private val preallocating = new AtomicBoolean()
+  private var preallocated_counter = 0L
+  @volatile
+  private var closed = false
+
   def delete(id:Long) = {
     log_mutex.synchronized {
       // We can't delete the current appender.
       if( current_appender.position != id ) {
-        Option(log_infos.get(id)).foreach { info =>
+        log_info(id).filter(_.position == id).foreach { info =>
+          remove_log_info(id)
+          // Drop the table's reference so the file gets closed once the
+          // in progress reads complete.
+          Option(segments.remove(id)).foreach(_.unref())
+          drop_blocks(info)
           onDelete(info.file)
-          log_infos.remove(id)
         }
       }
     }
   }
 
   protected def onDelete(file:File) = {
-    file.delete()
+    recycle(file) || file.delete()
+  }
+
+  /**
+   * Renames a deleted log file into a preallocated one.  It's already
+   * sized so reusing it is cheaper than creating a new one.  The old records
+   * left in it can't be mistaken for new ones since their UOW_END_RECORDs
+   * point at positions of the old log file.  The head gets zeroed so the
+   * file does not look like it holds compressed blocks.
+   */
+  private def recycle(file:File) = preallocated.synchronized {
+    if( recycle_logs && !closed && preallocated.size < preallocate_logs ) {
+      val target = preallocated_file
+      val zeroed = try {
+        using(new RandomAccessFile(file, "rw")) { raf =>
+          raf.write(new Array[Byte](LOG_HEADER_SIZE.max(BLOCK_HEADER_SIZE)))
+        }
+        true
+      } catch {
+        case e:IOException =>
+          warn(e, "Could not recycle log file: "+file)
+          false
+      }
+      if( zeroed && file.renameTo(target) ) {
+        preallocated.add(target)
+        true
+      } else {
+        false
+      }
+    } else {
+      false
+    }
+  }
+
+  private def preallocated_file = preallocated.synchronized {
+    preallocated_counter += 1
+    directory / ("%016x%s%s".format(preallocated_counter, logSuffix, PREALLOCATED_SUFFIX))
+  }
+
+  /**
+   * Tops up the preallocated log files from a background thread.
+   */
+  private def preallocate:Unit = {
+    def needed = !closed && preallocated.synchronized { preallocated.size < preallocate_logs }
+    if( needed && preallocating.compareAndSet(false, true) ) {
+      LevelDBClient.THREAD_POOL.execute(new Runnable() {
+        def run() = {
+          var failed = false
+          try {
+            while( needed ) {
+              val file = preallocated_file
+              using(new RandomAccessFile(file, "rw")) { raf =>
+                raf.seek(logSize-1)
+                raf.write(0)
+                raf.getChannel.force(true)
+              }
+              preallocated.synchronized {
+                preallocated.add(file)
+              }
+            }
+          } catch {
+            case e:Throwable =>
+              warn(e, "Could not preallocate a log file: "+e)
+              failed = true
+          } finally {
+            preallocating.set(false)
+          }
+          // A file could have been taken while we were finishing up.
+          if( !failed ) {
+            preallocate
+          }
+        }
+      })
+    }
+  }
+
+  /**
+   * Moves a preallocated log file into place if there is one ready.
+   */
+  private def take_preallocated(file:File) = {
+    if( preallocate_logs > 0 && !file.exists() ) {
+      val ready = preallocated.synchronized { preallocated.poll() }
+      if( ready!=null && !ready.renameTo(file) ) {
+        ready.delete()
+      }
+      preallocate
+    }
+  }
+
+  /**
+   * Picks up the preallocated log files left over from the last time
+   * the log was open.
+   */
+  private def load_preallocated = preallocated.synchronized {
+    preallocated.clear()
+    val suffix = logSuffix+PREALLOCATED_SUFFIX
+    Option(directory.listFiles).getOrElse(Array[File]()).filter(_.getName.endsWith(suffix)).sortBy(_.getName).foreach { file =>
+      try {
+        val counter = jl.Long.parseLong(file.getName.stripSuffix(suffix), 16)
+        preallocated_counter = preallocated_counter.max(counter)
+        if( preallocated.size < preallocate_logs ) {
+          preallocated.add(file)
+        } else {
+          file.delete()
+        }
+      } catch {
+        case e:NumberFormatException =>
+      }
+    }
   }
 
   def checksum(data: Buffer): Int = {
@@ -111,8 +457,12 @@ case class RecordLog(directory: File, logSuffix:String) {
     override def open = new RandomAccessFile(file, "rw")
 
     override def dispose() = {
-      force
-      super.dispose()
+      try {
+        force
+        super.dispose()
+      } finally {
+        write_buffer.release
+      }
     }
 
     var append_offset = 0L
@@ -123,18 +473,35 @@ case class RecordLog(directory: File, logSuffix:String) {
     }
 
     // set the file size ahead of time so that we don't have to sync the file
-    // meta-data on every log sync.
-    channel.position(logSize-1)
-    channel.write(new Buffer(1).toByteBuffer)
-    channel.force(true)
+    // meta-data on every log sync.  Preallocated files already are.
+    if( channel.size() < logSize ) {
+      channel.position(logSize-1)
+      channel.write(new Buffer(1).toByteBuffer)
+      channel.force(true)
+    }
     if( sync ) {
       channel.position(0)
     }
 
-    val write_buffer = new DataByteArrayOutputStream(BUFFER_SIZE+LOG_HEADER_SIZE)
+    // Blocks get compressed from the heap.
+    val write_buffer = if( direct_write_buffer && blocks==null ) new DirectWriteBuffer else new HeapWriteBuffer
+
+    override protected def load_blocks = if( compress_blocks ) new BlockTable else null
+
+    // Where the next frame goes when compressing blocks.
+    private var frame_offset = 0L
 
     def force = {
       flush
+      force_flushed
+    }
+
+    /**
+     * Syncs the data that has already been flushed to the channel.  Unlike
+     * force, this does not touch the write buffer so it can be called from
+     * a thread other than the one appending to the log.
+     */
+    def force_flushed = {
       if(sync) {
         max_log_flush_latency {
           // only need to update the file metadata if the file size changes..
@@ -151,58 +518,111 @@ case class RecordLog(directory: File, logSuffix:String) {
       val data_length = data.length
       val total_length = LOG_HEADER_SIZE + data_length
 
-      if( write_buffer.position() + total_length > BUFFER_SIZE ) {
+      if( write_buffer.position + total_length > BUFFER_SIZE ) {
         flush
       }
 
       val cs: Int = checksum(data)
 //      trace("Writing at: "+record_position+" len: "+data_length+" with checksum: "+cs)
 
-      if( false && total_length > BYPASS_BUFFER_SIZE ) {
+      if( total_length > direct_write_threshold || total_length > write_buffer.capacity ) {
 
-        // Write the header and flush..
-        write_buffer.writeByte(LOG_HEADER_PREFIX)
-        write_buffer.writeByte(id)
-        write_buffer.writeInt(cs)
-        write_buffer.writeInt(data_length)
-
-        append_offset += LOG_HEADER_SIZE
+        // Large records skip the write buffer so we don't copy them.  Flush
+        // what's buffered first so that the record lands right after it.
         flush
 
-        // Directly write the data to the channel since it's large.
-        val buffer = data.toByteBuffer
-        val pos = append_offset+LOG_HEADER_SIZE
-        val remaining = buffer.remaining
-        channel.write(buffer, pos)
-        flushed_offset.addAndGet(remaining)
-        if( buffer.hasRemaining ) {
-          throw new IOException("Short write")
+        val os = new DataByteArrayOutputStream(LOG_HEADER_SIZE)
+        os.writeByte(LOG_HEADER_PREFIX)
+        os.writeByte(id)
+        os.writeInt(cs)
+        os.writeInt(data_length)
+        val header = os.toBuffer
+
+        // Written out in one gathering write.  If we crash part way through,
+        // the record fails its checksum and recovery truncates the log
+        // back to the last complete UOW_END_RECORD.
+        max_log_flush_latency {
+          write_direct(header, data)
         }
-        append_offset += data_length
+        append_offset += total_length
+        flushed_offset.addAndGet(total_length)
 
       } else {
-        write_buffer.writeByte(LOG_HEADER_PREFIX)
-        write_buffer.writeByte(id)
-        write_buffer.writeInt(cs)
-        write_buffer.writeInt(data_length)
-        write_buffer.write(data.data, data.offset, data_length)
+        write_buffer.write_record(id, cs, data)
         append_offset += total_length
       }
       (record_position, info)
     }
 
     def flush = max_log_flush_latency { this.synchronized {
-      if( write_buffer.position() > 0 ) {
-        val buffer = write_buffer.toBuffer.toByteBuffer
+      if( write_buffer.position > 0 ) {
+        val buffer = write_buffer.buffered
         val remaining = buffer.remaining
         val pos = append_offset-remaining
-        channel.write(buffer, pos)
+        if( blocks!=null ) {
+          write_block(new Buffer(buffer.array, buffer.arrayOffset+buffer.position, remaining), pos)
+        } else {
+          write_file(Array(buffer), pos)
+        }
         flushed_offset.addAndGet(remaining)
-        if( buffer.hasRemaining ) {
+        write_buffer.reset
+      } }
+    }
+
+    /**
+     * Writes a record which is bypassing the write buffer at the
+     * current append offset.
+     */
+    protected def write_direct(header:Buffer, data:Buffer):Unit = {
+      if( blocks!=null ) {
+        val record = new Buffer(header.length+data.length)
+        System.arraycopy(header.data, header.offset, record.data, 0, header.length)
+        System.arraycopy(data.data, data.offset, record.data, header.length, data.length)
+        write_block(record, append_offset)
+      } else {
+        write_file(Array(header.toByteBuffer, data.toByteBuffer), append_offset)
+      }
+    }
+
+    /**
+     * Compresses the data which goes at the given uncompressed offset
+     * into a frame at the end of the file.
+     */
+    private def write_block(data:Buffer, offset:Long) = {
+      val compressed = Snappy.compress(data)
+      val cs = checksum(compressed)
+      val header = new DataByteArrayOutputStream(BLOCK_HEADER_SIZE)
+      header.writeByte(BLOCK_HEADER_PREFIX)
+      header.writeInt(data.length)
+      header.writeInt(compressed.length)
+      header.writeInt(cs)
+      write_file(Array(header.toBuffer.toByteBuffer, compressed.toByteBuffer), frame_offset)
+      val block = Block(offset, data.length, frame_offset, compressed.length, cs)
+      blocks.add(block)
+      frame_offset = block.file_limit
+      // Blank out the next header so that the stale frames of a recycled
+      // file don't get indexed.  The next frame overwrites it, so it's not
+      // part of the log that gets shipped to copies.
+      write_local(Array(ByteBuffer.allocate(BLOCK_HEADER_SIZE)), frame_offset)
+    }
+
+    /**
+     * Writes the buffers to the log file starting at the file offset.
+     */
+    protected def write_file(buffers:Array[ByteBuffer], file_offset:Long):Unit = {
+      write_local(buffers, file_offset)
+    }
+
+    private def write_local(buffers:Array[ByteBuffer], file_offset:Long):Unit = {
+      var remaining = buffers.foldLeft(0L)(_ + _.remaining)
+      channel.position(file_offset)
+      while( remaining > 0 ) {
+        val written = channel.write(buffers)
+        if( written <= 0 ) {
           throw new IOException("Short write")
         }
-        write_buffer.reset()
-      } }
+        remaining -= written
+      }
     }
 
     override def check_read_flush(end_offset:Long) = {
@@ -219,6 +639,8 @@ case class RecordLog(directory: File, logSuffix:String) {
 
     val fd = open
     val channel = fd.getChannel
+    // Only set for block compressed log files.
+    val blocks = load_blocks
 
     override def dispose() {
       fd.close()
@@ -226,6 +648,93 @@ case class RecordLog(directory: File, logSuffix:String) {
 
     def check_read_flush(end_offset:Long) = {}
 
+    protected def load_blocks:BlockTable = {
+      val header = new Buffer(BLOCK_HEADER_SIZE)
+      if( channel.read(header.toByteBuffer, 0) < 1 || header.data(0) != BLOCK_HEADER_PREFIX ) {
+        null
+      } else {
+        // Index the frames.  A torn frame at the end gets dropped.
+        val rc = new BlockTable
+        val size = channel.size()
+        var offset = 0L
+        var file_offset = 0L
+        var done = false
+        while( !done ) {
+          val bb = header.toByteBuffer
+          if( channel.read(bb, file_offset) != BLOCK_HEADER_SIZE ) {
+            done = true
+          } else {
+            val is = new DataByteArrayInputStream(header)
+            val prefix = is.readByte()
+            val length = is.readInt()
+            val compressed_length = is.readInt()
+            val block = Block(offset, length, file_offset, compressed_length, is.readInt())
+            if( prefix != BLOCK_HEADER_PREFIX || length <= 0 || compressed_length <= 0 || block.file_limit > size ) {
+              done = true
+            } else {
+              rc.add(block)
+              offset = block.limit
+              file_offset = block.file_limit
+            }
+          }
+        }
+        rc
+      }
+    }
+
+    /**
+     * The number of bytes the file holds, uncompressed.
+     */
+    def data_size = if( blocks==null ) channel.size() else blocks.limit
+
+    /**
+     * Maps the offset of a record boundary to the offset in the file.
+     */
+    def file_offset(offset:Long):Option[Long] = if( blocks==null ) Some(offset) else blocks.file_offset(offset)
+
+    /**
+     * Reads the bytes at the offset of the uncompressed file.
+     */
+    protected def pread(bb:ByteBuffer, offset:Long):Int = {
+      if( blocks==null ) {
+        channel.read(bb, offset)
+      } else {
+        var rc = 0
+        var pos = offset
+        var block = blocks.find(pos)
+        while( bb.hasRemaining && block!=null ) {
+          val data = read_block(block)
+          val in_block = (pos-block.offset).toInt
+          val count = (block.length-in_block).min(bb.remaining)
+          bb.put(data.data, data.offset+in_block, count)
+          rc += count
+          pos += count
+          block = blocks.find(pos)
+        }
+        if( rc==0 && bb.hasRemaining ) -1 else rc
+      }
+    }
+
+    private def read_block(block:Block):Buffer = {
+      val key = position+block.offset
+      var rc = block_cache.synchronized { block_cache.get(key) }
+      if( rc==null ) {
+        val compressed = new Buffer(block.compressed_length)
+        if( channel.read(compressed.toByteBuffer, block.file_offset+BLOCK_HEADER_SIZE) != compressed.length ) {
+          throw new IOException("short block at position: "+key+" in file: "+file)
+        }
+        if( block.checksum != checksum(compressed) ) {
+          throw new IOException("block checksum does not match at position: "+key+" in file: "+file)
+        }
+        rc = Snappy.uncompress(compressed)
+        if( rc.length != block.length ) {
+          throw new IOException("invalid block at position: "+key+" in file: "+file)
+        }
+        block_cache.synchronized { block_cache.put(key, rc) }
+      }
+      rc
+    }
+
     def read(record_position:Long, length:Int) = {
       val offset = record_position-position
       assert(offset >=0 )
@@ -241,13 +750,13 @@ case class RecordLog(directory: File, logSuffix:String) {
             val channel = fd.getChannel
             val new_record = new Buffer(LOG_HEADER_SIZE+length)
             channel.read(new_record.toByteBuffer, offset)
-            var same = record == new_record
+            var same = blocks!=null || record == new_record
             println(same)
             same
           }
         }
 
-        if( channel.read(record.toByteBuffer, offset) != record.length ) {
+        if( pread(record.toByteBuffer, offset) != record.length ) {
           assert( record_is_not_changing )
           throw new IOException("short record at position: "+record_position+" in file: "+file+", offset: "+offset)
         }
@@ -275,17 +784,35 @@ case class RecordLog(directory: File, logSuffix:String) {
         data
       } else {
         val data = new Buffer(length)
-        if( channel.read(data.toByteBuffer, offset+LOG_HEADER_SIZE) != data.length ) {
+        if( pread(data.toByteBuffer, offset+LOG_HEADER_SIZE) != data.length ) {
           throw new IOException("short record at position: "+record_position+" in file: "+file+", offset: "+offset)
         }
         data
       }
     }
 
+    /**
+     * Reads length bytes of the log file starting at the given log
+     * position, record headers and all.
+     */
+    def read_raw(start_position:Long, length:Int) = {
+      val offset = start_position-position
+      assert(offset >=0 )
+      check_read_flush(offset+length)
+      val data = new Buffer(length)
+      val bb = data.toByteBuffer
+      while( bb.hasRemaining ) {
+        if( pread(bb, offset+bb.position()) <= 0 ) {
+          throw new IOException("short read at position: "+start_position+" in file: "+file+", offset: "+offset)
+        }
+      }
+      data
+    }
+
     def read(record_position:Long) = {
       val offset = record_position-position
       val header = new Buffer(LOG_HEADER_SIZE)
-      channel.read(header.toByteBuffer, offset)
+      pread(header.toByteBuffer, offset)
       val is = header.bigEndianEditor();
       val prefix = is.readByte()
       if( prefix != LOG_HEADER_PREFIX ) {
@@ -297,7 +824,7 @@ case class RecordLog(directory: File, logSuffix:String) {
       val length = is.readInt()
       val data = new Buffer(length)
 
-      if( channel.read(data.toByteBuffer, offset+LOG_HEADER_SIZE) != length ) {
+      if( pread(data.toByteBuffer, offset+LOG_HEADER_SIZE) != length ) {
         throw new IOException("short record")
       }
 
@@ -310,9 +837,17 @@ case class RecordLog(directory: File, logSuffix:String) {
     }
 
     def check(record_position:Long):Option[(Long, Option[Long])] = {
+      try {
+        check_record(record_position)
+      } catch {
+        case e:IOException => None // A torn or corrupt block.
+      }
+    }
+
+    private def check_record(record_position:Long):Option[(Long, Option[Long])] = {
       var offset = record_position-position
       val header = new Buffer(LOG_HEADER_SIZE)
-      channel.read(header.toByteBuffer, offset)
+      pread(header.toByteBuffer, offset)
       val is = header.bigEndianEditor();
       val prefix = is.readByte()
       if( prefix != LOG_HEADER_PREFIX ) {
@@ -335,7 +870,7 @@ case class RecordLog(directory: File, logSuffix:String) {
         val chunkSize = remaining.min(1024*4);
         chunkbb.position(0)
         chunkbb.limit(chunkSize)
-        channel.read(chunkbb, offset)
+        pread(chunkbb, offset)
         if( chunkbb.hasRemaining ) {
           return None
         }
@@ -355,7 +890,7 @@ case class RecordLog(directory: File, logSuffix:String) {
     def verifyAndGetEndPosition:Long = {
       var pos = position;
       var current_uow_start = pos
-      val limit = position+channel.size()
+      val limit = position+data_size
       while(pos < limit) {
         check(pos) match {
           case Some((next, uow_start_pos)) =>
@@ -375,6 +910,71 @@ case class RecordLog(directory: File, logSuffix:String) {
     }
   }
 
+  /**
+   * Serves reads of a log file that is no longer being appended to
+   * from a read only memory mapping of the file.
+   */
+  class MappedLogReader(file:File, position:Long) extends LogReader(file, position) {
+
+    val mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+
+    override def dispose() {
+      unmap(mapped)
+      super.dispose()
+    }
+
+    override def read(record_position:Long, length:Int):Buffer = {
+      if( blocks!=null ) {
+        return super.read(record_position, length)
+      }
+      val offset = (record_position-position).toInt
+      if( offset < 0 || offset.toLong+LOG_HEADER_SIZE+length > mapped.limit() ) {
+        throw new IOException("short record at position: "+record_position+" in file: "+file+", offset: "+offset)
+      }
+      val bb = mapped.duplicate()
+      bb.position(offset)
+      if(verify_checksums) {
+        val prefix = bb.get()
+        if( prefix != LOG_HEADER_PREFIX ) {
+          throw new IOException("invalid record at position: "+record_position+" in file: "+file+", offset: "+offset)
+        }
+        val id = bb.get()
+        val expectedChecksum = bb.getInt()
+        val expectedLength = bb.getInt()
+        val data = new Buffer(length)
+        bb.get(data.data, 0, length)
+
+        // If your reading the whole record we can verify the data checksum
+        if( expectedLength == length ) {
+          if( expectedChecksum != checksum(data) ) {
+            throw new IOException("checksum does not match at position: "+record_position+" in file: "+file+", offset: "+offset)
+          }
+        }
+        data
+      } else {
+        val data = new Buffer(length)
+        bb.position(offset+LOG_HEADER_SIZE)
+        bb.get(data.data, 0, length)
+        data
+      }
+    }
+
+    override def read_raw(start_position:Long, length:Int):Buffer = {
+      if( blocks!=null ) {
+        return super.read_raw(start_position, length)
+      }
+      val offset = (start_position-position).toInt
+      if( offset < 0 || offset.toLong+length > mapped.limit() ) {
+        throw new IOException("short read at position: "+start_position+" in file: "+file+", offset: "+offset)
+      }
+      val bb = mapped.duplicate()
+      bb.position(offset)
+      val data = new Buffer(length)
+      bb.get(data.data, 0, length)
+      data
+    }
+  }
+
   def create_log_appender(position: Long) = {
     new LogAppender(next_log(position), position)
   }
@@ -382,10 +982,16 @@ case class RecordLog(directory: File, logSuffix:String) {
   def create_appender(position: Long): Any = {
     log_mutex.synchronized {
       if(current_appender!=null) {
-        log_infos.put (position, new LogInfo(current_appender.file, current_appender.position, current_appender.append_offset))
+        put_log_info(new LogInfo(current_appender.file, current_appender.position, current_appender.append_offset))
+        // Reads of the rotated file go to a plain reader from now on.
+        Option(segments.remove(current_appender.position)).foreach(_.unref())
       }
       current_appender = create_log_appender(position)
-      log_infos.put(position, new LogInfo(current_appender.file, position, 0))
+      // In the table before the info shows up so that reads never bypass
+      // the appender's write buffer.
+      current_appender.retain()
+      Option(segments.put(position, new Segment(current_appender, false))).foreach(_.unref())
+      put_log_info(new LogInfo(current_appender.file, position, 0))
     }
   }
 
@@ -395,23 +1001,27 @@ case class RecordLog(directory: File, logSuffix:String) {
 
   def open = {
     log_mutex.synchronized {
-      log_infos.clear()
-      LevelDBClient.find_sequence_files(directory, logSuffix).foreach { case (position,file) =>
-        log_infos.put(position, LogInfo(file, position, file.length()))
-      }
-
-      val appendPos = if( log_infos.isEmpty ) {
-        0L
+      closed = false
+      block_cache.synchronized { block_cache.clear() }
+      load_preallocated
+      log_info_array = LevelDBClient.find_sequence_files(directory, logSuffix).map { case (position,file) =>
+        LogInfo(file, position, data_size(file, position))
+      }.toArray
+
+      val appendPos = if( log_info_array.isEmpty ) {
+        start_position
       } else {
-        val file = log_infos.lastEntry().getValue
+        val file = log_info_array.last
         val r = LogReader(file.file, file.position)
         try {
           val actualLength = r.verifyAndGetEndPosition
           val updated = file.copy(length = actualLength - file.position)
-          log_infos.put(updated.position, updated)
-          if( updated.file.length != file.length ) {
-            // we need to truncate.
-            using(new RandomAccessFile(file.file, "rw")) ( _.setLength(updated.length))
+          put_log_info(updated)
+          r.file_offset(updated.length).foreach { file_length =>
+            if( truncate_on_open && file_length < file.file.length ) {
+              // we need to truncate.
+              using(new RandomAccessFile(file.file, "rw")) ( _.setLength(file_length))
+            }
           }
           actualLength
         } finally {
@@ -421,18 +1031,54 @@ case class RecordLog(directory: File, logSuffix:String) {
 
       create_appender(appendPos)
     }
+    preallocate
+  }
+
+  /**
+   * Adds a log file older than the current appender which showed up
+   * after the log got opened.
+   */
+  def add_log_file(position:Long, file:File) = log_mutex.synchronized {
+    put_log_info(LogInfo(file, position, data_size(file, position)))
+    // A reader opened while the file was still filling up is stale.
+    Option(segments.remove(position)).foreach(_.unref())
+  }
+
+  /**
+   * The number of bytes a log file holds, uncompressed.
+   */
+  private def data_size(file:File, position:Long) = {
+    val r = LogReader(file, position)
+    try {
+      r.data_size
+    } finally {
+      r.release()
+    }
   }
 
   def close = {
     log_mutex.synchronized {
+      closed = true
       current_appender.release
+      import collection.JavaConversions._
+      segments.values.foreach(_.unref())
+      segments.clear()
+      block_cache.synchronized { block_cache.clear() }
     }
   }
 
   def appender_limit = current_appender.append_position
   def appender_start = current_appender.position
 
-  def next_log(position:Long) = LevelDBClient.create_sequence_file(directory, position, logSuffix)
+  /**
+   * The file of the appender starting at position.  A preallocated log file
+   * gets moved into place if the file does not exist yet.
+   */
+  def next_log(position:Long) = {
+    val file = LevelDBClient.create_sequence_file(directory, position, logSuffix)
+    take_preallocated(file)
+    file
+  }
 
   def appender[T](func: (LogAppender)=>T):T= {
     val intial_position = current_appender.append_position
@@ -450,6 +1096,9 @@ case class RecordLog(directory: File, logSuffix:String) {
       max_log_rotate_latency {
         log_mutex.synchronized {
           if ( current_appender.append_offset >= logSize ) {
+            // Sync before we swap appenders so that force_flushed callers
+            // only ever need to sync the current appender.
+            current_appender.force
             current_appender.release()
             on_log_rotate()
             create_appender(current_appender.append_position)
@@ -461,49 +1110,162 @@ case class RecordLog(directory: File, logSuffix:String) {
 
   var on_log_rotate: ()=>Unit = ()=>{}
 
-  private val reader_cache = new LRUCache[File, LogReader](100) {
-    protected override def onCacheEviction(entry: Entry[File, LogReader]) = {
-      entry.getValue.release()
+  /**
+   * Syncs all the data flushed to the log so far.  Log files which have been
+   * rotated out were synced before the rotation so only the current
+   * appender needs to be forced.
+   */
+  def force_flushed = {
+    val appender = log_mutex.synchronized {
+      current_appender.retain()
+      current_appender
+    }
+    try {
+      appender.force_flushed
+    } finally {
+      appender.release()
     }
   }
 
-  def log_info(pos:Long) = log_mutex.synchronized { Option(log_infos.floorEntry(pos)).map(_.getValue) }
-
-  private def get_reader[T](record_position:Long)(func: (LogReader)=>T) = {
+  /**
+   * A reader in the segment table.  The table holds one reference and the
+   * reads hold one while they use the reader.  A lookup fails instead of
+   * retaining a reader which is being closed.
+   */
+  class Segment(val reader:LogReader, val evictable:Boolean) {
+    private val refs = new AtomicInteger(1)
+    @volatile
+    var last_used = System.nanoTime()
+
+    def try_retain:Boolean = {
+      while( true ) {
+        val current = refs.get()
+        if( current <= 0 ) {
+          return false
+        }
+        if( refs.compareAndSet(current, current+1) ) {
+          last_used = System.nanoTime()
+          return true
+        }
+      }
+      false
+    }
 
-    val lookup = log_mutex.synchronized {
-      val info = log_info(record_position)
-      info.map { info=>
-        if(info.position == current_appender.position) {
-          current_appender.retain()
-          (info, current_appender)
-        } else {
-          (info, null)
+    def unref() = {
+      if( refs.decrementAndGet() == 0 ) {
+        if( evictable ) {
+          open_readers.decrementAndGet()
         }
+        reader.release()
       }
     }
+  }
 
-    lookup.map { case (info, appender) =>
-      val reader = if( appender!=null ) {
-        // read from the current appender.
-        appender
-      } else {
-        // Checkout a reader from the cache...
-        reader_cache.synchronized {
-          var reader = reader_cache.get(info.file)
-          if(reader==null) {
-            reader = LogReader(info.file, info.position)
-            reader_cache.put(info.file, reader)
+  // The readers of the log files keyed by their position.  The current
+  // appender is in here too.
+  private val segments = new ConcurrentHashMap[Long, Segment]()
+  // How many evictable readers the segments hold.
+  private val open_readers = new AtomicInteger()
+
+  // Decompressed blocks keyed by their log position.
+  private val block_cache = new LRUCache[Long, Buffer](BLOCK_CACHE_SIZE)
+
+  // The positions of a deleted log can get reused after a purge.
+  private def drop_blocks(info:LogInfo) = block_cache.synchronized {
+    import collection.JavaConversions._
+    block_cache.keySet.toList.filter(x=> x >= info.position && x < info.limit).foreach(block_cache.remove(_))
+  }
+
+  private def open_segment(info:LogInfo) = {
+    if( mmap_reads && info.file.length() <= Int.MaxValue ) {
+      // Rotated log files don't change anymore so we can read them
+      // from a memory mapping.
+      new Segment(new MappedLogReader(info.file, info.position), false)
+    } else {
+      open_readers.incrementAndGet()
+      new Segment(LogReader(info.file, info.position), true)
+    }
+  }
+
+  private def retain_segment(info:LogInfo):Option[Segment] = {
+    while( true ) {
+      var segment = segments.get(info.position)
+      if( segment==null ) {
+        val created = try {
+          open_segment(info)
+        } catch {
+          case e:IOException if !is_live(info) =>
+            // The log file got deleted under us.
+            return None
+        }
+        segment = segments.putIfAbsent(info.position, created)
+        if( segment==null ) {
+          segment = created
+          if( created.evictable && open_readers.get() > READER_CACHE_SIZE ) {
+            evict_segment
           }
-          reader.retain()
-          reader
+        } else {
+          // Another thread beat us to it.
+          created.unref()
         }
       }
+      if( segment.try_retain ) {
+        if( is_live(info) ) {
+          return Some(segment)
+        }
+        // The log file got deleted after we looked up it's info.  Don't
+        // leave it's reader behind in the table.
+        if( segments.remove(info.position, segment) ) {
+          segment.unref()
+        }
+        segment.unref()
+        return None
+      }
+      // It's being closed, try again.
+      segments.remove(info.position, segment)
+    }
+    None
+  }
+
+  private def is_live(info:LogInfo) = {
+    log_info(info.position).exists(x=> x.position == info.position && x.file == info.file)
+  }
+
+  /**
+   * Closes the least recently used log file reader.
+   */
+  private def evict_segment = {
+    import collection.JavaConversions._
+    val candidates = segments.entrySet.filter(_.getValue.evictable)
+    if( !candidates.isEmpty ) {
+      val lru = candidates.minBy(_.getValue.last_used)
+      if( segments.remove(lru.getKey, lru.getValue) ) {
+        lru.getValue.unref()
+      }
+    }
+  }
+
+  def log_info(pos:Long) = {
+    val infos = log_info_array
+    val i = floor_index(infos, pos)
+    if( i < 0 ) None else Some(infos(i))
+  }
 
+  /**
+   * The position of the log file after the one holding pos.
+   */
+  private def next_log_position(pos:Long) = {
+    val infos = log_info_array
+    val i = floor_index(infos, pos)+1
+    if( i < infos.length ) infos(i).position else Long.MaxValue
+  }
+
+  private def get_reader[T](record_position:Long)(func: (LogReader)=>T) = {
+    log_info(record_position).flatMap(retain_segment(_)).map { segment =>
       try {
-        func(reader)
+        func(segment.reader)
       } finally {
-        reader.release
+        segment.unref()
       }
     }
   }
@@ -511,6 +1273,65 @@ case class RecordLog(directory: File, logSuffix:String) {
   def read(pos:Long) = {
     get_reader(pos)(_.read(pos))
   }
+
+  /**
+   * Reads the data of a batch of records.  Records which sit close to
+   * each other in the same log file are loaded with a single read.
+   * The results are in the same order as the locators.  Records that
+   * could not be found are returned as null.
+   */
+  def read_batch(locators:Array[(Long, Int)]):Array[Buffer] = {
+    val rc = new Array[Buffer](locators.length)
+    val order = (0 until locators.length).sortBy(locators(_)._1).toArray
+    var i = 0
+    while( i < order.length ) {
+      val start = locators(order(i))._1
+      val file_limit = next_log_position(start)
+      var end = start+LOG_HEADER_SIZE+locators(order(i))._2
+      var j = i+1
+      var extending = true
+      while( extending && j < order.length ) {
+        val (pos, length) = locators(order(j))
+        val record_end = pos+LOG_HEADER_SIZE+length
+        if( pos-end <= READ_COALESCE_GAP && record_end-start <= READ_COALESCE_LIMIT && record_end <= file_limit ) {
+          end = end.max(record_end)
+          j += 1
+        } else {
+          extending = false
+        }
+      }
+
+      if( j == i+1 ) {
+        rc(order(i)) = read(start, locators(order(i))._2).getOrElse(null)
+      } else {
+        get_reader(start)(_.read_raw(start, (end-start).toInt)).foreach { raw =>
+          for( k <- i until j ) {
+            val (pos, length) = locators(order(k))
+            rc(order(k)) = slice_record(raw, (pos-start).toInt, pos, length)
+          }
+        }
+      }
+      i = j
+    }
+    rc
+  }
+
+  private def slice_record(raw:Buffer, offset:Int, record_position:Long, length:Int) = {
+    val data = new Buffer(raw.data, raw.offset+offset+LOG_HEADER_SIZE, length)
+    if( verify_checksums ) {
+      val is = new Buffer(raw.data, raw.offset+offset, LOG_HEADER_SIZE).bigEndianEditor()
+      if( is.readByte() != LOG_HEADER_PREFIX ) {
+        throw new IOException("invalid record at position: "+record_position)
+      }
+      is.readByte()
+      val expectedChecksum = is.readInt()
+      val expectedLength = is.readInt()
+      if( expectedLength == length && expectedChecksum != checksum(data) ) {
+        throw new IOException("checksum does not match at position: "+record_position)
+      }
+    }
+    data
+  }
   def read(pos:Long, length:Int) = {
     get_reader(pos)(_.read(pos, length))
   }
@@ -0,0 +1,463 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mq.leveldb
+
+import org.fusesource.mq.leveldb.util._
+
+import FileSupport._
+import java.io._
+import java.net.{InetSocketAddress, Socket}
+import java.nio.ByteBuffer
+import scala.collection.immutable.TreeMap
+
+/**
+ * <p>
+ * The replication protocol.  The standby sends a HELLO once the master
+ * connects, the master then sends the log files it has, it's index
+ * snapshot if the standby can't replay from it's own one, and the log
+ * data the standby is missing.  After that it sends the log writes and
+ * deletes as they happen.  The standby ACKs the log data it received.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+object ReplicatedLevelDBClient extends Log {
+
+  // snapshot position, log count, (log position, log length)*
+  final val HELLO:Byte = 1
+  // log count, (log position, log length)*
+  final val LOG_FILES:Byte = 2
+  // snapshot position, file count, (name, length, data)*
+  final val INDEX_SNAPSHOT:Byte = 3
+  // log position, file offset, length, data
+  final val LOG_APPEND:Byte = 4
+  // log position
+  final val LOG_DELETE:Byte = 5
+  // log position, file offset the data was received up to
+  final val ACK:Byte = 6
+
+  val LOG_SUFFIX = LevelDBClient.LOG_SUFFIX
+  val INDEX_SUFFIX = LevelDBClient.INDEX_SUFFIX
+
+  val BUFFER_SIZE = 1024*64
+  val CATCH_UP_CHUNK_SIZE = 1024*256
+  val CONNECT_TIMEOUT = 5000
+  val RECONNECT_DELAY = 1000L
+
+  def parse_address(address:String) = {
+    val i = address.lastIndexOf(':')
+    if( i < 0 ) {
+      throw new IllegalArgumentException("Expected a host:port address: "+address)
+    }
+    new InetSocketAddress(address.substring(0, i), address.substring(i+1).toInt)
+  }
+
+  /**
+   * Is the standby index snapshot at the position still good once the
+   * standby's logs get synced up with the master's ones?  The log it ends
+   * in must match the master's log at that position.
+   */
+  def snapshot_valid(position:Long, standby_logs:TreeMap[Long, Long], master_logs:TreeMap[Long, Long]) = {
+    standby_logs.to(position).lastOption match {
+      case Some((log, length)) =>
+        master_logs.get(log).exists(length <= _) && master_logs.range(log+1, position).isEmpty
+      case None => false
+    }
+  }
+
+  def write_logs(out:DataOutputStream, logs:collection.Map[Long, Long]) = {
+    out.writeInt(logs.size)
+    logs.foreach { case (position, length) =>
+      out.writeLong(position)
+      out.writeLong(length)
+    }
+  }
+
+  def read_logs(in:DataInputStream) = {
+    TreeMap((0 until in.readInt()).map { i =>
+      in.readLong() -> in.readLong()
+    }:_*)
+  }
+}
+
+/**
+ * <p>
+ * The client of the master store.  Every log write also gets sent to the
+ * replicas, in quorum mode a log sync waits until a quorum of the replicas
+ * has ACKed the log data written so far.  The master counts towards the
+ * quorum.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class ReplicatedLevelDBClient(val store:ReplicatedLevelDBStore) extends LevelDBClient(store) {
+  import ReplicatedLevelDBClient._
+
+  // Only the main log gets replicated.
+  override def logStripeDirectories = {
+    if( store.logStripeDirectories!=null ) {
+      warn("Log striping is not supported by the replicated store, ignoring the logStripeDirectories setting.")
+    }
+    Array[File]()
+  }
+
+  // Orders the log writes against the replicas joining.  Taken after the
+  // log mutex when both are needed.
+  val replication_mutex = new Object
+  // The log position and file offset that has been written up to.
+  var written_log = -1L
+  var written_offset = 0L
+
+  val ack_mutex = new Object
+  @volatile
+  var stopped = false
+  var replicas = List[Replica]()
+
+  def quorum = {
+    if( store.replicationMode.toLowerCase == "async" ) {
+      0
+    } else {
+      (replicas.size+1) / 2
+    }
+  }
+
+  override def replication_lag_bytes = replicas.foldLeft(0L)((rc, r) => rc.max(r.shipper.lag_bytes))
+  override def replication_lag_time = replicas.foldLeft(0L)((rc, r) => rc.max(r.shipper.lag_time))
+
+  override def start() = {
+    stopped = false
+    written_log = -1L
+    written_offset = 0L
+    super.start()
+    replicas = store.replicaAddresses.toList.zipWithIndex.map { case (address, i) =>
+      new Replica(address, i)
+    }
+    replicas.foreach(_.start)
+  }
+
+  override def stop() = {
+    // The last log writes still get replicated.
+    super.stop()
+    stopped = true
+    ack_mutex.synchronized {
+      ack_mutex.notifyAll()
+    }
+    replicas.foreach(_.stop)
+    replicas = Nil
+  }
+
+  /**
+   * Waits until a quorum of the replicas have the log data written so far.
+   */
+  def await_quorum:Unit = {
+    val needed = quorum
+    if( needed > 0 ) {
+      val (log, offset) = replication_mutex.synchronized {
+        (written_log, written_offset)
+      }
+      var warned = false
+      ack_mutex.synchronized {
+        while( !stopped && replicas.count(_.has_acked(log, offset)) < needed ) {
+          ack_mutex.wait(1000)
+          if( !warned && !stopped && replicas.count(_.has_acked(log, offset)) < needed ) {
+            warn("Waiting for a quorum of the replicas to get the log data.")
+            warned = true
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Replicates the log to one standby.  The connection to it gets
+   * re-established from a background thread while the master runs.
+   */
+  class Replica(val address:String, val id:Int) {
+
+    case class Connection(socket:Socket, in:DataInputStream, out:DataOutputStream)
+
+    val shipper = new LogShipper("LevelDB replication to "+address, store.replicationQueueSize)
+    @volatile
+    var connection:Connection = _
+    var acked_log = -1L
+    var acked_offset = 0L
+
+    def has_acked(log:Long, offset:Long) = acked_log > log || (acked_log == log && acked_offset >= offset)
+
+    val thread = new Thread("LevelDB replication connector to "+address) {
+      setDaemon(true)
+      override def run = connect_loop
+    }
+
+    def start = thread.start()
+
+    def stop = {
+      // Ships what's still queued before the connection gets closed.
+      shipper.stop
+      close(connection)
+      thread.interrupt()
+      thread.join()
+    }
+
+    private def close(c:Connection) = {
+      if( c != null ) {
+        try {
+          c.socket.close()
+        } catch {
+          case e:IOException =>
+        }
+        if( connection eq c ) {
+          connection = null
+        }
+        ack_mutex.synchronized {
+          ack_mutex.notifyAll()
+        }
+      }
+    }
+
+    private def connect_loop:Unit = {
+      while( !stopped ) {
+        var c:Connection = null
+        try {
+          val socket = new Socket()
+          socket.connect(parse_address(address), CONNECT_TIMEOUT)
+          socket.setTcpNoDelay(true)
+          c = Connection(socket,
+            new DataInputStream(new BufferedInputStream(socket.getInputStream, BUFFER_SIZE)),
+            new DataOutputStream(new BufferedOutputStream(socket.getOutputStream, BUFFER_SIZE)))
+          join(c)
+          info("Replicating the log to: %s", address)
+          while( true ) {
+            c.in.readByte() match {
+              case ACK =>
+                val log = c.in.readLong()
+                val offset = c.in.readLong()
+                ack_mutex.synchronized {
+                  acked_log = log
+                  acked_offset = offset
+                  ack_mutex.notifyAll()
+                }
+              case kind =>
+                throw new IOException("Unexpected replication frame: "+kind)
+            }
+          }
+        } catch {
+          case e:Throwable =>
+            if( !stopped && c!=null ) {
+              warn("Lost the replication connection to %s: %s", address, e)
+            }
+        }
+        close(c)
+        try {
+          Thread.sleep(RECONNECT_DELAY)
+        } catch {
+          case e:InterruptedException =>
+        }
+      }
+    }
+
+    /**
+     * Catches the standby up with the master.  The writes which happen
+     * after the catch up got queued are sent to it as they happen.
+     */
+    private def join(c:Connection) = {
+      if( c.in.readByte() != HELLO ) {
+        throw new IOException("Expected a HELLO from the standby")
+      }
+      val standby_snapshot = c.in.readLong()
+      val standby_logs = read_logs(c.in)
+
+      usingIndex {
+        log.log_mutex.synchronized {
+          replication_mutex.synchronized {
+            val (last_log, last_offset) = if( written_log < 0 ) (log.appender_start, 0L) else (written_log, written_offset)
+            val logs = log.log_infos.toList.map { info =>
+              // The current log file is preallocated, only send what got written.
+              val length = if( info.position == last_log ) {
+                last_offset
+              } else if( info.position == log.appender_start ) {
+                0L
+              } else {
+                info.file.length
+              }
+              (info.position, info.file, length)
+            }
+            val master_logs = TreeMap(logs.map(x => x._1 -> x._3):_*)
+
+            // Stage our index snapshot if the standby can't replay from it's own one.
+            val replay_start = if( snapshot_valid(standby_snapshot, standby_logs, master_logs) ) standby_snapshot else 0L
+            val staged = if( !master_logs.isEmpty && master_logs.to(replay_start).isEmpty && snapshotIndexFile(lastIndexSnapshotPos).isDirectory ) {
+              val dir = directory / ("replica-"+id+".tmp")
+              dir.recursiveDelete
+              dir.mkdirs()
+              snapshotIndexFile(lastIndexSnapshotPos).listFiles.foreach { file =>
+                if( file.getName != "LOCK" ) {
+                  file.linkTo(dir / file.getName)
+                }
+              }
+              Some((lastIndexSnapshotPos, dir))
+            } else {
+              None
+            }
+
+            acked_log = -1L
+            acked_offset = 0L
+            connection = c
+            send(c) {
+              c.out.writeByte(LOG_FILES)
+              write_logs(c.out, master_logs)
+              staged.foreach { case (position, dir) =>
+                send_snapshot(c, position, dir)
+              }
+              logs.foreach { case (position, file, length) =>
+                val offset = standby_logs.get(position).filter(_ <= length).getOrElse(0L)
+                send_file(c, position, file, offset, length)
+              }
+              // Ends /w an empty write at the end of the log so the
+              // standby ACKs up to there.
+              send_append(c, last_log, last_offset, Array[Byte]())
+              c.out.flush()
+            }
+          }
+        }
+      }
+    }
+
+    private def send_snapshot(c:Connection, position:Long, dir:File) = {
+      try {
+        val files = dir.listFiles
+        c.out.writeByte(INDEX_SNAPSHOT)
+        c.out.writeLong(position)
+        c.out.writeInt(files.length)
+        files.foreach { file =>
+          c.out.writeUTF(file.getName)
+          c.out.writeLong(file.length)
+          using(new FileInputStream(file)) { is =>
+            copy(is, c.out)
+          }
+        }
+      } finally {
+        dir.recursiveDelete
+      }
+    }
+
+    private def send_file(c:Connection, position:Long, file:File, from:Long, to:Long) = {
+      if( file.exists ) {
+        using(new RandomAccessFile(file, "r")) { is =>
+          var offset = from
+          val buffer = new Array[Byte](CATCH_UP_CHUNK_SIZE)
+          while( offset < to ) {
+            val length = (to - offset).min(CATCH_UP_CHUNK_SIZE).toInt
+            is.seek(offset)
+            is.readFully(buffer, 0, length)
+            send_append(c, position, offset, if( length == buffer.length ) buffer else buffer.take(length))
+            offset += length
+          }
+        }
+      }
+    }
+
+    private def send_append(c:Connection, position:Long, offset:Long, data:Array[Byte]) = {
+      c.out.writeByte(LOG_APPEND)
+      c.out.writeLong(position)
+      c.out.writeLong(offset)
+      c.out.writeInt(data.length)
+      c.out.write(data)
+    }
+
+    /**
+     * Queues up sending a frame on the connection, a failure closes
+     * the connection.
+     */
+    private def send(c:Connection, size:Int=0)(func: =>Unit) = {
+      shipper.ship(size) {
+        if( connection eq c ) {
+          try {
+            func
+          } catch {
+            case e:IOException =>
+              debug(e, "Replication to %s failed: %s", address, e)
+              close(c)
+          }
+        }
+      }
+    }
+
+    def replicate_append(position:Long, offset:Long, data:Array[Byte]) = {
+      val c = connection
+      if( c!=null ) {
+        send(c, data.length) {
+          send_append(c, position, offset, data)
+          c.out.flush()
+        }
+      }
+    }
+
+    def replicate_delete(position:Long) = {
+      val c = connection
+      if( c!=null ) {
+        send(c) {
+          c.out.writeByte(LOG_DELETE)
+          c.out.writeLong(position)
+          c.out.flush()
+        }
+      }
+    }
+  }
+
+  // Override the log appender implementation so that it also
+  // sends the log writes to the replicas.
+  override def createLog = new RecordLog(logDirectory, LOG_SUFFIX) {
+
+    override protected def onDelete(file: File) = {
+      val rc = super.onDelete(file)
+      val position = java.lang.Long.parseLong(file.getName.stripSuffix(LOG_SUFFIX), 16)
+      replication_mutex.synchronized {
+        replicas.foreach(_.replicate_delete(position))
+      }
+      rc
+    }
+
+    override def create_log_appender(position: Long) = {
+      new LogAppender(next_log(position), position) {
+
+        override protected def write_file(buffers: Array[ByteBuffer], file_offset: Long) = {
+          // The buffers get reused once we return so send a copy.
+          val data = new Array[Byte](buffers.foldLeft(0)(_ + _.remaining))
+          var pos = 0
+          buffers.foreach { buffer =>
+            val length = buffer.remaining
+            buffer.duplicate().get(data, pos, length)
+            pos += length
+          }
+          replication_mutex.synchronized {
+            super.write_file(buffers, file_offset)
+            written_log = position
+            written_offset = file_offset + data.length
+            replicas.foreach(_.replicate_append(position, file_offset, data))
+          }
+        }
+
+        override def force_flushed = {
+          super.force_flushed
+          await_quorum
+        }
+      }
+    }
+  }
+}
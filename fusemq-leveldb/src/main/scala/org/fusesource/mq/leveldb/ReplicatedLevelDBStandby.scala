@@ -0,0 +1,264 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mq.leveldb
+
+import org.fusesource.mq.leveldb.util._
+
+import FileSupport._
+import java.io._
+import java.net.{ServerSocket, Socket}
+import java.util.concurrent.atomic.AtomicLong
+import scala.collection.mutable.HashMap
+
+object ReplicatedLevelDBStandby extends Log
+
+/**
+ * <p>
+ * Accepts the log of the master store and writes it to the local log
+ * files.  The log data that arrives gets replayed into a local index
+ * snapshot every standbyInterval so that only the last bit of the log
+ * needs to be replayed when the store takes over.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class ReplicatedLevelDBStandby(val store:ReplicatedLevelDBStore) {
+  import ReplicatedLevelDBStandby._
+  import ReplicatedLevelDBClient.{HELLO, LOG_FILES, INDEX_SNAPSHOT, LOG_APPEND, LOG_DELETE, ACK,
+    LOG_SUFFIX, INDEX_SUFFIX, BUFFER_SIZE, parse_address, snapshot_valid, write_logs, read_logs}
+
+  def directory = store.directory
+  def logDirectory = Option(store.logDirectory).getOrElse(store.directory)
+
+  @volatile
+  var stopped = false
+  var server:ServerSocket = _
+  var accept_thread:Thread = _
+  var replay_thread:Thread = _
+
+  // Only one master connection gets handled at a time.
+  val frame_mutex = new Object
+  // Held while the log files or index snapshots get replaced or replayed.
+  val replay_mutex = new Object
+  var connection:Socket = _
+  val open_logs = HashMap[Long, RandomAccessFile]()
+
+  val received_bytes = new AtomicLong()
+  // How far the local index has been replayed.
+  @volatile
+  var replayed_position = 0L
+
+  def start = {
+    directory.mkdirs()
+    logDirectory.mkdirs()
+    server = new ServerSocket()
+    server.setReuseAddress(true)
+    server.bind(parse_address(store.bind))
+    accept_thread = new Thread("LevelDB standby accept on "+store.bind) {
+      setDaemon(true)
+      override def run = accept_loop
+    }
+    accept_thread.start()
+    replay_thread = new Thread("LevelDB standby replay") {
+      setDaemon(true)
+      override def run = replay_loop
+    }
+    replay_thread.start()
+  }
+
+  def stop = {
+    this.synchronized {
+      stopped = true
+      notifyAll()
+    }
+    server.close()
+    this.synchronized {
+      if( connection!=null ) {
+        connection.close()
+      }
+    }
+    accept_thread.join()
+    replay_thread.join()
+    frame_mutex.synchronized {
+      close_logs
+    }
+  }
+
+  private def accept_loop:Unit = {
+    while( !stopped ) {
+      try {
+        val socket = server.accept()
+        socket.setTcpNoDelay(true)
+        // A new master takes over from the old one.
+        this.synchronized {
+          if( connection!=null ) {
+            connection.close()
+          }
+          connection = socket
+        }
+        new Thread("LevelDB standby receive from "+socket.getRemoteSocketAddress) {
+          setDaemon(true)
+          override def run = receive(socket)
+        }.start()
+      } catch {
+        case e:IOException =>
+          if( !stopped ) {
+            warn(e, "Standby could not accept a connection: "+e)
+          }
+      }
+    }
+  }
+
+  private def receive(socket:Socket) = {
+    try {
+      val in = new DataInputStream(new BufferedInputStream(socket.getInputStream, BUFFER_SIZE))
+      val out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream, BUFFER_SIZE))
+      frame_mutex.synchronized {
+        info("Receiving the log from: %s", socket.getRemoteSocketAddress)
+        replay_mutex.synchronized {
+          out.writeByte(HELLO)
+          out.writeLong(LevelDBClient.find_sequence_files(directory, INDEX_SUFFIX).lastOption.map(_._1).getOrElse(0L))
+          write_logs(out, local_logs.map(x => x._1 -> x._2.length))
+          out.flush()
+        }
+        while( !stopped ) {
+          in.readByte() match {
+            case LOG_FILES =>
+              sync_log_files(read_logs(in))
+            case INDEX_SNAPSHOT =>
+              receive_snapshot(in)
+            case LOG_APPEND =>
+              val position = in.readLong()
+              val offset = in.readLong()
+              val data = new Array[Byte](in.readInt())
+              in.readFully(data)
+              val file = open_logs.getOrElseUpdate(position, {
+                new RandomAccessFile(LevelDBClient.create_sequence_file(logDirectory, position, LOG_SUFFIX), "rw")
+              })
+              file.seek(offset)
+              file.write(data)
+              received_bytes.addAndGet(data.length)
+              // ACK once we caught up with what the master sent.
+              if( in.available() == 0 ) {
+                out.writeByte(ACK)
+                out.writeLong(position)
+                out.writeLong(offset+data.length)
+                out.flush()
+              }
+            case LOG_DELETE =>
+              val position = in.readLong()
+              replay_mutex.synchronized {
+                open_logs.remove(position).foreach(_.close())
+                LevelDBClient.create_sequence_file(logDirectory, position, LOG_SUFFIX).delete()
+              }
+            case kind =>
+              throw new IOException("Unexpected replication frame: "+kind)
+          }
+        }
+      }
+    } catch {
+      case e:Throwable =>
+        if( !stopped ) {
+          warn("Lost the connection to the master: %s", e)
+        }
+    } finally {
+      socket.close()
+    }
+  }
+
+  private def local_logs = LevelDBClient.find_sequence_files(logDirectory, LOG_SUFFIX)
+
+  private def close_logs = {
+    open_logs.values.foreach(_.close())
+    open_logs.clear()
+  }
+
+  /**
+   * Drops the local log files and index snapshots that don't match the
+   * master's logs, like the ones of a master that failed before it could
+   * replicate all it's log data.
+   */
+  private def sync_log_files(master_logs:collection.immutable.TreeMap[Long, Long]) = replay_mutex.synchronized {
+    close_logs
+    val logs = local_logs
+    val standby_logs = logs.map(x => x._1 -> x._2.length)
+    for( (id, dir) <- LevelDBClient.find_sequence_files(directory, INDEX_SUFFIX) ) {
+      if( !snapshot_valid(id, standby_logs, master_logs) ) {
+        info("Deleting local index snapshot which does not match the master: %s", dir.getName)
+        dir.recursiveDelete
+      }
+    }
+    for( (id, file) <- logs ) {
+      if( !master_logs.get(id).exists(file.length <= _) ) {
+        info("Deleting local log file which does not match the master: %s", file.getName)
+        file.delete()
+      }
+    }
+  }
+
+  private def receive_snapshot(in:DataInputStream) = replay_mutex.synchronized {
+    val position = in.readLong()
+    val temp = directory / "standby.index.tmp"
+    temp.recursiveDelete
+    temp.mkdirs()
+    for( i <- 0 until in.readInt() ) {
+      val name = in.readUTF()
+      var remaining = in.readLong()
+      using(new FileOutputStream(temp / name)) { os =>
+        val buffer = new Array[Byte](BUFFER_SIZE)
+        while( remaining > 0 ) {
+          val count = in.read(buffer, 0, remaining.min(buffer.length).toInt)
+          if( count < 0 ) {
+            throw new EOFException()
+          }
+          os.write(buffer, 0, count)
+          remaining -= count
+        }
+      }
+    }
+    LevelDBClient.find_sequence_files(directory, INDEX_SUFFIX).foreach(_._2.recursiveDelete)
+    temp.renameTo(LevelDBClient.create_sequence_file(directory, position, INDEX_SUFFIX))
+    replayed_position = position
+    info("Received the index snapshot of the master at: %d", position)
+  }
+
+  private def replay_loop:Unit = {
+    var replayed_bytes = 0L
+    while( !stopped ) {
+      this.synchronized {
+        if( !stopped ) {
+          wait(store.standbyInterval)
+        }
+      }
+      val received = received_bytes.get()
+      if( !stopped && received != replayed_bytes ) {
+        try {
+          replay_mutex.synchronized {
+            replayed_position = LevelDBClient.replay_logs(store, logDirectory)
+          }
+          replayed_bytes = received
+          debug("Replayed the log up to: %d", replayed_position)
+        } catch {
+          case e:Throwable =>
+            warn(e, "Standby could not replay the log: "+e)
+        }
+      }
+    }
+  }
+
+}
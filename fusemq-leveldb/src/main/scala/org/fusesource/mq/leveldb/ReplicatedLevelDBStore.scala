@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mq.leveldb
+
+import scala.reflect.BeanProperty
+
+/**
+ * <p>
+ * A LevelDB store which replicates it's log to standby stores over TCP.
+ * The standbys replay the log as it arrives so that one of them can take
+ * over when the master fails.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class ReplicatedLevelDBStore extends LevelDBStore {
+
+  // The host:port addresses of the standbys the master replicates to,
+  // comma separated.
+  @BeanProperty
+  var replicas:String = _
+  // The host:port address a standby accepts the master's connection on.
+  @BeanProperty
+  var bind = "0.0.0.0:61619"
+  // "quorum": a log sync waits until a quorum of the replicas has the log
+  // data, "async": it does not wait for the replicas.
+  @BeanProperty
+  var replicationMode = "quorum"
+  // How many bytes of log data can be waiting to be sent to a replica
+  // before the log writes block.
+  @BeanProperty
+  var replicationQueueSize = 1024*1024*16L
+  // How often (in ms) a standby replays the log data it received.
+  @BeanProperty
+  var standbyInterval = 5000L
+
+  var standby:ReplicatedLevelDBStandby = _
+
+  def replicaAddresses = Option(replicas).map { value =>
+    value.split("""(,|\s)+""").map(_.trim()).filterNot(_.isEmpty)
+  }.getOrElse(Array[String]())
+
+  /**
+   * Starts accepting the log from the master so that this store can
+   * take over quickly.  The standby gets stopped when the store is
+   * started.
+   */
+  def startStandby = this.synchronized {
+    if( isStarted ) {
+      throw new IllegalStateException("The store is already started.")
+    }
+    if( standby==null ) {
+      configureLogCompression
+      standby = new ReplicatedLevelDBStandby(this)
+      standby.start
+    }
+  }
+
+  def stopStandby = this.synchronized {
+    if( standby!=null ) {
+      standby.stop
+      standby = null
+    }
+  }
+
+  override def doStart = {
+    stopStandby
+    super.doStart
+  }
+
+  override def createClient = new ReplicatedLevelDBClient(this)
+}
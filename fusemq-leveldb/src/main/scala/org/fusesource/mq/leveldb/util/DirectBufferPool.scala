@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb.util
+
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * <p>
+ * Keeps up to max_pooled direct buffers of buffer_size bytes around for
+ * reuse.  Direct buffers are expensive to allocate and only get freed
+ * when they are GCed, so we don't want to allocate one per log file.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class DirectBufferPool(val buffer_size:Int, val max_pooled:Int) {
+
+  private val pooled = new ConcurrentLinkedQueue[ByteBuffer]()
+  private val pooled_count = new AtomicInteger()
+
+  def acquire:ByteBuffer = {
+    val rc = pooled.poll()
+    if( rc == null ) {
+      ByteBuffer.allocateDirect(buffer_size)
+    } else {
+      pooled_count.decrementAndGet()
+      rc.clear()
+      rc
+    }
+  }
+
+  def release(buffer:ByteBuffer):Unit = {
+    if( pooled_count.incrementAndGet() <= max_pooled ) {
+      pooled.offer(buffer)
+    } else {
+      pooled_count.decrementAndGet()
+    }
+  }
+
+  def size = pooled_count.get
+
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb.util
+
+import java.io.{FileOutputStream, OutputStreamWriter, File}
+import TimeMetric.Snapshot
+
+/**
+ * <p>
+ * Appends the latencies recorded since the last report to a CSV file,
+ * one line per metric.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class LatencyReporter(val file:File, val metrics:Seq[(String, TimeMetric)]) {
+
+  private var last_snapshots = metrics.map(_._2.snapshot)
+
+  def report:Unit = this.synchronized {
+    val snapshots = metrics.map(_._2.snapshot)
+    val is_new = !file.exists() || file.length()==0
+    val out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8")
+    try {
+      if( is_new ) {
+        out.write("time,metric,count,p50,p90,p99,p999,max\n")
+      }
+      val now = System.currentTimeMillis()
+      for( ((name, _), (current, last)) <- metrics.zip(snapshots.zip(last_snapshots)) ) {
+        val delta:Snapshot = current - last
+        out.write("%d,%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f\n".formatLocal(java.util.Locale.ROOT,
+          now, name, delta.count,
+          delta.percentile(50), delta.percentile(90), delta.percentile(99), delta.percentile(99.9), delta.max))
+      }
+    } finally {
+      out.close()
+    }
+    last_snapshots = snapshots
+  }
+
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb.util
+
+/**
+ * <p>
+ * An open addressing (linear probing) hash table keyed by primitive
+ * longs.  Every key has `width` long values stored inline in one flat
+ * array, so neither the keys nor the values get boxed.
+ * </p>
+ * <p>
+ * Updates must come from one thread at a time.  Other threads can read
+ * without locking: they may see stale values, but the table is swapped
+ * in as a whole when it grows so a lookup never sees a half built one.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+abstract class LongHashTable(val width:Int, initial_capacity:Int) {
+
+  protected class Table(val capacity:Int) {
+    val mask = capacity-1
+    val keys = new Array[Long](capacity)
+    val used = new Array[Boolean](capacity)
+    val values = new Array[Long](capacity*width)
+  }
+
+  @volatile
+  protected var table = new Table(LongHashTable.table_size(initial_capacity))
+  private var count = 0
+
+  def size = count
+  def isEmpty = count == 0
+
+  /**
+   * Returns the slot holding the key or -1 if it's not in the table.
+   */
+  protected def slot(t:Table, key:Long):Int = {
+    var i = LongHashTable.hash(key) & t.mask
+    while( t.used(i) ) {
+      if( t.keys(i) == key ) {
+        return i
+      }
+      i = (i+1) & t.mask
+    }
+    -1
+  }
+
+  /**
+   * Returns the slot holding the key, adding the key with all
+   * it's values set to 0 if it's not in the table yet.
+   */
+  protected def insert(key:Long):Int = {
+    var t = table
+    var i = slot(t, key)
+    if( i < 0 ) {
+      if( (count+1)*4 > t.capacity*3 ) {
+        t = grow(t)
+      }
+      i = LongHashTable.hash(key) & t.mask
+      while( t.used(i) ) {
+        i = (i+1) & t.mask
+      }
+      t.keys(i) = key
+      t.used(i) = true
+      count += 1
+    }
+    i
+  }
+
+  private def grow(t:Table) = {
+    val rc = new Table(t.capacity*2)
+    var i = 0
+    while( i < t.capacity ) {
+      if( t.used(i) ) {
+        var j = LongHashTable.hash(t.keys(i)) & rc.mask
+        while( rc.used(j) ) {
+          j = (j+1) & rc.mask
+        }
+        rc.keys(j) = t.keys(i)
+        System.arraycopy(t.values, i*width, rc.values, j*width, width)
+        rc.used(j) = true
+      }
+      i += 1
+    }
+    table = rc
+    rc
+  }
+
+  def contains(key:Long) = slot(table, key) >= 0
+
+  def remove(key:Long):Boolean = {
+    val t = table
+    var i = slot(t, key)
+    if( i < 0 ) {
+      false
+    } else {
+      // Shift back the entries that follow in the probe sequence so
+      // we don't need tombstones.
+      var j = (i+1) & t.mask
+      while( t.used(j) ) {
+        val home = LongHashTable.hash(t.keys(j)) & t.mask
+        // Can the entry at j be moved into the hole at i?
+        if( ((j-home) & t.mask) >= ((j-i) & t.mask) ) {
+          t.keys(i) = t.keys(j)
+          System.arraycopy(t.values, j*width, t.values, i*width, width)
+          i = j
+        }
+        j = (j+1) & t.mask
+      }
+      t.used(i) = false
+      java.util.Arrays.fill(t.values, i*width, (i+1)*width, 0L)
+      count -= 1
+      true
+    }
+  }
+
+  def clear() = {
+    table = new Table(LongHashTable.table_size(initial_capacity))
+    count = 0
+  }
+
+  def keys:Array[Long] = {
+    val t = table
+    val rc = new Array[Long](count)
+    var i = 0
+    var j = 0
+    while( i < t.capacity && j < rc.length ) {
+      if( t.used(i) ) {
+        rc(j) = t.keys(i)
+        j += 1
+      }
+      i += 1
+    }
+    rc
+  }
+
+}
+
+object LongHashTable {
+
+  def table_size(capacity:Int) = {
+    var rc = 16
+    while( rc*3 < capacity*4 ) {
+      rc *= 2
+    }
+    rc
+  }
+
+  def hash(key:Long):Int = {
+    // The murmur3 finalizer, log positions and collection keys are far
+    // from random.
+    var h = key
+    h ^= h >>> 33
+    h *= 0xff51afd7ed558ccdL
+    h ^= h >>> 33
+    h *= 0xc4ceb9fe1a85ec53L
+    h ^= h >>> 33
+    h.toInt
+  }
+
+}
+
+/**
+ * A primitive long to long hash map.
+ */
+class LongLongHashMap(initial_capacity:Int = 16) extends LongHashTable(1, initial_capacity) {
+
+  def get(key:Long, default:Long = 0L):Long = {
+    val t = table
+    val i = slot(t, key)
+    if( i < 0 ) default else t.values(i)
+  }
+
+  def put(key:Long, value:Long) = {
+    val i = insert(key)
+    table.values(i) = value
+  }
+
+  /**
+   * Adds delta to the key's value, a missing key starts at 0.
+   */
+  def addAndGet(key:Long, delta:Long):Long = {
+    val i = insert(key)
+    val t = table
+    t.values(i) += delta
+    t.values(i)
+  }
+
+  def foreach(func:(Long, Long)=>Unit) = {
+    val t = table
+    var i = 0
+    while( i < t.capacity ) {
+      if( t.used(i) ) {
+        func(t.keys(i), t.values(i))
+      }
+      i += 1
+    }
+  }
+
+}
+
+/**
+ * A primitive long hash set.
+ */
+class LongHashSet(initial_capacity:Int = 16) extends LongHashTable(0, initial_capacity) {
+
+  def add(key:Long) = insert(key)
+
+  def foreach(func:(Long)=>Unit) = {
+    val t = table
+    var i = 0
+    while( i < t.capacity ) {
+      if( t.used(i) ) {
+        func(t.keys(i))
+      }
+      i += 1
+    }
+  }
+
+}
@@ -17,26 +17,159 @@
 
 package org.fusesource.mq.leveldb.util
 
-case class TimeMetric() {
-  var max = 0L
+import java.util.concurrent.atomic.{AtomicReferenceArray, AtomicLongArray, AtomicLong}
+
+object TimeMetric {
+
+  // Every power of 2 range of durations is split into 16 buckets so a
+  // recorded duration is off by at most 1/16th.
+  final val SUB_BUCKET_BITS = 4
+  final val SUB_BUCKETS = 1 << SUB_BUCKET_BITS
+  // Longer durations (over 30 minutes) land in the last bucket.
+  final val MAX_EXPONENT = 40
+  final val BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) << SUB_BUCKET_BITS
+
+  // Threads record into one of these so that they rarely contend.
+  final val STRIPES = {
+    var rc = 1
+    while( rc < Runtime.getRuntime.availableProcessors() && rc < 16 ) {
+      rc <<= 1
+    }
+    rc
+  }
 
-  def add(duration:Long) = this.synchronized {
-    max = max.max(duration)
+  def bucket(duration:Long):Int = {
+    val value = duration.max(0).min((1L << (MAX_EXPONENT+1))-1)
+    if( value < SUB_BUCKETS ) {
+      value.toInt
+    } else {
+      val exponent = 63 - java.lang.Long.numberOfLeadingZeros(value)
+      ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) +
+        ((value >>> (exponent - SUB_BUCKET_BITS)).toInt & (SUB_BUCKETS-1))
+    }
   }
 
-  def get = {
-    this.synchronized {
-      max
-    } / 1000000.0
+  /**
+   * The largest duration which lands in the bucket.
+   */
+  def bucket_limit(bucket:Int):Long = {
+    if( bucket < SUB_BUCKETS ) {
+      bucket
+    } else {
+      val exponent = (bucket >> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1
+      val sub_bucket = bucket & (SUB_BUCKETS-1)
+      ((SUB_BUCKETS + sub_bucket + 1).toLong << (exponent - SUB_BUCKET_BITS)) - 1
+    }
   }
+
+  /**
+   * The bucket counts of a metric at some point in time.
+   */
+  case class Snapshot(counts:Array[Long]) {
+
+    lazy val count = counts.sum
+
+    /**
+     * Returns the duration (in ms) which p percent of the recorded
+     * durations did not exceed.
+     */
+    def percentile(p:Double):Double = {
+      if( count == 0 ) {
+        0.0
+      } else {
+        val rank = math.ceil(count * p / 100).toLong.max(1)
+        var seen = 0L
+        var i = 0
+        while( i < counts.length-1 && seen+counts(i) < rank ) {
+          seen += counts(i)
+          i += 1
+        }
+        bucket_limit(i) / 1000000.0
+      }
+    }
+
+    def max = percentile(100)
+
+    /**
+     * The durations recorded since the other snapshot was taken.
+     */
+    def -(other:Snapshot) = {
+      val rc = new Array[Long](counts.length)
+      for( i <- 0 until counts.length ) {
+        rc(i) = counts(i) - other.counts(i)
+      }
+      Snapshot(rc)
+    }
+  }
+
+}
+
+/**
+ * <p>
+ * Tracks the maximum and a histogram of the durations recorded.  Recording
+ * is lock free, the histogram is only merged when it's read.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+case class TimeMetric() {
+  import TimeMetric._
+
+  private val max = new AtomicLong()
+  private val stripes = new AtomicReferenceArray[AtomicLongArray](STRIPES)
+  // The histogram at the last reset.
+  @volatile private var baseline:Snapshot = null
+
+  def add(duration:Long) = {
+    var current = max.get
+    while( duration > current && !max.compareAndSet(current, duration) ) {
+      current = max.get
+    }
+    val stripe = (Thread.currentThread().getId & (STRIPES-1)).toInt
+    var counts = stripes.get(stripe)
+    if( counts == null ) {
+      stripes.compareAndSet(stripe, null, new AtomicLongArray(BUCKETS))
+      counts = stripes.get(stripe)
+    }
+    counts.incrementAndGet(bucket(duration))
+  }
+
+  def get = max.get / 1000000.0
+
+  /**
+   * Returns the maximum and clears it.  The histogram is cumulative, but
+   * the interval since the reset can still be looked at.
+   */
   def reset = {
-    this.synchronized {
-      val rc = max
-      max  = 0
-      rc
-    } / 1000000.0
+    val rc = max.getAndSet(0)
+    baseline = snapshot
+    rc / 1000000.0
   }
 
+  /**
+   * The durations recorded since the last reset.
+   */
+  def interval = {
+    val last = baseline
+    if( last == null ) snapshot else snapshot - last
+  }
+
+  def snapshot = {
+    val rc = new Array[Long](BUCKETS)
+    for( i <- 0 until STRIPES ) {
+      val counts = stripes.get(i)
+      if( counts != null ) {
+        for( j <- 0 until BUCKETS ) {
+          rc(j) += counts.get(j)
+        }
+      }
+    }
+    Snapshot(rc)
+  }
+
+  def count = snapshot.count
+  def percentile(p:Double) = snapshot.percentile(p)
+
   def apply[T](func: =>T):T = {
     val start = System.nanoTime()
     try {
@@ -47,4 +180,3 @@ case class TimeMetric() {
   }
 
 }
-
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb
+
+import junit.framework.TestCase
+import junit.framework.Assert._
+import LevelDBClient._
+import org.fusesource.hawtbuf.{Buffer, DataByteArrayOutputStream}
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class CounterFormatTest extends TestCase {
+
+  def testLogRefs = {
+    for( count <- List(0L, 1L, 127L, 128L, Long.MaxValue) ) {
+      assertEquals(count, decodeLogRef(encodeLogRef(count)))
+    }
+  }
+
+  def testCollectionMeta = {
+    assertEquals((12345L, 678L), decodeCollectionMeta(encodeCollectionMeta(12345, 678)))
+    assertEquals((0L, 0L), decodeCollectionMeta(encodeCollectionMeta(0, 0)))
+  }
+
+  def testPackedEntries = {
+    val entry = PackedEntry(5, 1234567, (2L << STRIPE_POSITION_SHIFT) + 99999, 300)
+    assertEquals(entry, decodePackedEntry(encodePackedEntry(entry.collection_key, entry.seq, entry.value_location, entry.value_length)))
+    assertEquals(PackedEntry(0, 0, 0, 0), decodePackedEntry(encodePackedEntry(0, 0, 0, 0)))
+    // Much smaller than the protobuf entry record it replaces.
+    assertEquals(8, encodePackedEntry(1, 1000, 1024*1024, 300).length)
+  }
+
+  def testKeysAndLocators = {
+    for( pos <- List(0L, 127L, 128L, (3L << STRIPE_POSITION_SHIFT) + 12345, Long.MaxValue); len <- List(0, 1, 300, Int.MaxValue) ) {
+      // Must stay readable by the stream based encoding older stores used.
+      val out = new DataByteArrayOutputStream(20)
+      out.writeVarLong(pos)
+      out.writeVarInt(len)
+      assertEquals(out.toBuffer, new Buffer(encodeLocator(pos, len)))
+      assertEquals((pos, len), decodeLocator(encodeLocator(pos, len)))
+    }
+    assertEquals((ENTRY_PREFIX, 5L), decodeLongKey(encodeLongKey(ENTRY_PREFIX, 5)))
+    assertEquals(-1L, decodeLong(encodeLong(-1)))
+    assertEquals(Long.MinValue, decodeVLong(encodeVLong(Long.MinValue)))
+    val key = encodeEntryKey(ENTRY_PREFIX, 7, 0x80L)
+    assertEquals(0x80L, decodeEntrySeq(key))
+    val (prefix, collection, seq) = decodeEntryKey(key)
+    assertEquals((ENTRY_PREFIX, 7L, 0x80L), (prefix, collection, decodeLong(seq)))
+    assertTrue(compareKeys(key, encodeEntryKey(ENTRY_PREFIX, 7, 0x7FL)) > 0)
+    assertTrue(compareKeys(key, encodeEntryKey(ENTRY_PREFIX, 8, 0L)) < 0)
+    assertTrue(startsWith(key, encodeLongKey(ENTRY_PREFIX, 7)))
+    assertFalse(startsWith(key, encodeLongKey(ENTRY_PREFIX, 8)))
+  }
+
+  def testUnknownVersionIsRejected = {
+    val value = encodeLogRef(5)
+    value(0) = 99
+    try {
+      decodeLogRef(value)
+      fail("expected IOException")
+    } catch {
+      case e:java.io.IOException =>
+    }
+  }
+
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb
+
+import junit.framework.TestCase
+import junit.framework.Assert._
+import org.apache.activemq.broker.ConnectionContext
+import org.apache.activemq.command._
+import org.apache.activemq.store.MessageRecoveryListener
+import java.io.{ObjectOutputStream, ByteArrayOutputStream, File}
+import util.FileSupport._
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class DurableSubRecoveryTest extends TestCase {
+
+  val data_directory = new File("target/activemq-data/durable-sub-recovery")
+  val topic = new ActiveMQTopic("TEST")
+  val producer_id = new ProducerId("ID:test:1:1")
+  var stores = List[LevelDBStore]()
+
+  override def setUp() {
+    data_directory.recursiveDelete
+  }
+
+  override def tearDown() {
+    stores.filter(_.isStarted).foreach(_.stop)
+  }
+
+  def create_store(name:String) = {
+    val store = new LevelDBStore
+    store.setDirectory(data_directory / name)
+    store.setFlushDelay(0)
+    stores ::= store
+    store
+  }
+
+  def topic_store(store:LevelDBStore) = {
+    store.createTopicMessageStore(topic).asInstanceOf[LevelDBStore#LevelDBTopicMessageStore]
+  }
+
+  /**
+   * Subscribes, sends 3 messages and acks the first one.
+   */
+  def subscribe_and_ack(store:LevelDBStore) = {
+    val topic_store = this.topic_store(store)
+    val info = new SubscriptionInfo
+    info.setClientId("client")
+    info.setSubscriptionName("sub")
+    info.setDestination(topic)
+    info.setSubscribedDestination(topic)
+    topic_store.addSubsciption(info, false)
+    val ids = (1 to 3).map { i =>
+      val message = new ActiveMQTextMessage
+      message.setText("message "+i)
+      message.setMessageId(new MessageId(producer_id, i))
+      message.setDestination(topic)
+      message.setResponseRequired(true)
+      topic_store.addMessage(new ConnectionContext, message)
+      message.getMessageId
+    }
+    val ack = new MessageAck
+    ack.setLastMessageId(ids.head)
+    ack.setDestination(topic)
+    topic_store.acknowledge(new ConnectionContext, "client", "sub", ids.head, ack)
+    topic_store.subscriptions.values.head.subKey
+  }
+
+  def pending(store:LevelDBStore) = {
+    val topic_store = this.topic_store(store)
+    assertNotNull(topic_store.lookupSubscription("client", "sub"))
+    var count = 0
+    topic_store.recoverSubscription("client", "sub", new MessageRecoveryListener {
+      def recoverMessage(message:Message) = {
+        count += 1
+        true
+      }
+      def recoverMessageReference(id:MessageId) = true
+      def hasSpace = true
+      def isDuplicate(id:MessageId) = false
+    })
+    count
+  }
+
+  def testReplayOfSubscriptionAcks = {
+    val master = create_store("master")
+    master.start
+    subscribe_and_ack(master)
+    assertEquals(2, pending(master))
+
+    // Rebuild the index from the logs only.
+    val copy = data_directory / "copy"
+    copy.mkdirs()
+    master.directory.listFiles.filter(_.getName.endsWith(LevelDBClient.LOG_SUFFIX)).foreach { file =>
+      file.copyTo(copy / file.getName)
+    }
+    master.stop
+
+    val store = create_store("copy")
+    store.start
+    assertEquals(2, pending(store))
+  }
+
+  def testMigrationOfSubscriptionCollectionMeta = {
+    val master = create_store("master")
+    master.start
+    val sub_key = subscribe_and_ack(master)
+
+    // Counters the way version 1 stores kept them.  The last key of a
+    // subscription is it's ack position key.
+    val meta = new LevelDBClient.CollectionMeta
+    meta.size = 1
+    meta.last_key = LevelDBClient.ACK_POSITION.toByteArray
+    val baos = new ByteArrayOutputStream
+    val os = new ObjectOutputStream(baos)
+    os.writeInt(1)
+    os.writeLong(sub_key)
+    os.writeObject(meta)
+    os.close()
+    val client = master.db.client
+    client.writeExecutor.submit(new Runnable {
+      def run = client.index.put(LevelDBClient.COLLECTION_META_KEY, baos.toByteArray)
+    }).get
+    master.stop
+
+    val copy = data_directory / "copy"
+    (data_directory / "master").recursiveCopyTo(copy)
+    val store = create_store("copy")
+    store.start
+    assertEquals(1L, store.db.client.collectionMeta.sizeOf(sub_key))
+    assertEquals(0L, store.db.client.collectionMeta.lastSeqOf(sub_key))
+    assertEquals(2, pending(store))
+  }
+
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb
+
+import junit.framework.TestCase
+import junit.framework.Assert._
+import FlushDelayPolicy._
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class FlushDelayPolicyTest extends TestCase {
+
+  val key = 1L
+
+  def create_policy = {
+    val store = new LevelDBStore
+    store.setAdaptiveFlushDelay(true)
+    store.setFlushDelay(1000)
+    val manager = new DBManager(store)
+    manager.asyncCapacityRemaining.set(store.getAsyncBufferSize)
+    manager.flush_delay_policy
+  }
+
+  /**
+   * Feeds the policy the enqueues of a consumer which dequeues them
+   * latency ms after they get enqueued.
+   */
+  def consume(policy:FlushDelayPolicy, latency:Long, windows:Int) = {
+    for( i <- 0 until windows*WINDOW ) {
+      if( policy.delay_for(List(key)) > latency ) {
+        policy.canceled(key, latency*1000000)
+      } else {
+        policy.flushed(key)
+      }
+    }
+    policy.delay_for(List(key))
+  }
+
+  def testDelayFollowsTheConsumers = {
+    val policy = create_policy
+    assertEquals(1000L, policy.delay_for(List(key)))
+
+    // A backlog builds up, nothing gets canceled.
+    assertEquals(MIN_DELAY, consume(policy, Long.MaxValue, 8))
+
+    // The consumers catch up but they take longer than the shortest delay
+    // to dequeue.
+    val delay = consume(policy, 50, 50)
+    assertTrue("delay: "+delay, delay > 50)
+    assertTrue("delay: "+delay, delay < 1000)
+  }
+
+}
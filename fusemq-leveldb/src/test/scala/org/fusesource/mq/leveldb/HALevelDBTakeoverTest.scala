@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb
+
+import junit.framework.TestCase
+import junit.framework.Assert._
+import org.apache.activemq.broker.ConnectionContext
+import org.apache.activemq.command._
+import org.apache.activemq.store.MessageRecoveryListener
+import java.io.File
+import util.FileSupport._
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class HALevelDBTakeoverTest extends TestCase {
+
+  val data_directory = new File("target/activemq-data/haleveldb-takeover")
+  val destination = new ActiveMQQueue("TEST")
+  val producer_id = new ProducerId("ID:test:1:1")
+  var stores = List[HALevelDBStore]()
+
+  override def setUp() {
+    data_directory.recursiveDelete
+  }
+
+  override def tearDown() {
+    stores.filter(_.isStarted).foreach(_.stop)
+  }
+
+  def create_store(name:String) = {
+    val store = new HALevelDBStore
+    store.setDirectory(data_directory / name)
+    store.setLogSize(1024*64)
+    store.setDfsUrl("file:///")
+    store.setDfsDirectory((data_directory / "dfs").getCanonicalPath)
+    store.setContainerId(name)
+    store.setFlushDelay(0)
+    stores ::= store
+    store
+  }
+
+  def send(store:LevelDBStore, ids:Range) = {
+    val queue = store.createQueueMessageStore(destination)
+    for( i <- ids ) {
+      val message = new ActiveMQTextMessage
+      message.setText("message "+i+" "+("x"*1024))
+      message.setMessageId(new MessageId(producer_id, i))
+      message.setDestination(destination)
+      message.setResponseRequired(true)
+      queue.addMessage(new ConnectionContext, message)
+    }
+  }
+
+  def recover(store:LevelDBStore) = {
+    val queue = store.createQueueMessageStore(destination)
+    val messages = new java.util.ArrayList[Message]()
+    queue.recover(new MessageRecoveryListener {
+      def recoverMessage(message:Message) = {
+        messages.add(message)
+        true
+      }
+      def recoverMessageReference(id:MessageId) = true
+      def hasSpace = true
+      def isDuplicate(id:MessageId) = false
+    })
+    import collection.JavaConversions._
+    messages.toList
+  }
+
+  def remove(store:LevelDBStore, count:Int) = {
+    val queue = store.createQueueMessageStore(destination)
+    recover(store).map(_.getMessageId).take(count).foreach { id =>
+      val ack = new MessageAck
+      ack.setLastMessageId(id)
+      ack.setDestination(destination)
+      queue.removeMessage(new ConnectionContext, ack)
+    }
+  }
+
+  def testLogRefsIntoOlderLogsSurviveTakeover = {
+    val master = create_store("master")
+    master.start
+    send(master, 1 to 300)
+    val client = master.db.client
+    client.writeExecutor.submit(new Runnable {
+      def run = client.snapshotIndex(false)
+    }).get
+    assertTrue(client.log.log_infos.size > 2)
+
+    // Dequeue messages stored in the first log after the snapshot so that
+    // replay has to update the refs of a log which is downloaded in the
+    // background.
+    remove(master, 10)
+    // Wait for the dequeues to get written.
+    val deadline = System.currentTimeMillis() + 10000
+    while( master.createQueueMessageStore(destination).getMessageCount != 290 && System.currentTimeMillis() < deadline ) {
+      Thread.sleep(10)
+    }
+    client.writeExecutor.submit(new Runnable {
+      def run = {}
+    }).get
+    val first = client.log.log_infos.head.position
+    val expected = client.logRefs.get(first)
+    master.stop
+
+    val slave = create_store("slave")
+    slave.start
+    assertEquals(290, slave.createQueueMessageStore(destination).getMessageCount)
+    assertEquals(expected, slave.db.client.logRefs.get(first))
+  }
+
+  def testCompressedLogBlocksSurviveTakeover = {
+    val master = create_store("master")
+    master.setLogCompression("snappy-block")
+    master.start
+    send(master, 1 to 300)
+    assertTrue(master.db.client.log.log_infos.size > 2)
+    master.stop
+
+    val slave = create_store("slave")
+    slave.setLogCompression("snappy-block")
+    slave.start
+    val texts = recover(slave).map(_.asInstanceOf[ActiveMQTextMessage].getText)
+    assertEquals((1 to 300).map(i => "message "+i+" "+("x"*1024)).toList, texts)
+  }
+
+}
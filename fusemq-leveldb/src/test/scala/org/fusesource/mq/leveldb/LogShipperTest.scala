@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb
+
+import junit.framework.TestCase
+import junit.framework.Assert._
+import java.io.IOException
+import java.util.concurrent.CountDownLatch
+import collection.mutable.ListBuffer
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class LogShipperTest extends TestCase {
+
+  var shipper:LogShipper = _
+
+  override def tearDown() {
+    if( shipper!=null ) {
+      shipper.stop
+    }
+  }
+
+  def testShipsInOrder = {
+    shipper = new LogShipper("test shipper", 1024)
+    val shipped = ListBuffer[Int]()
+    for( i <- 0 until 100 ) {
+      shipper.ship(100) {
+        shipped += i
+      }
+    }
+    shipper.sync {}
+    assertEquals((0 until 100).toList, shipped.toList)
+    assertEquals(10000L, shipper.shipped_bytes.get)
+    assertEquals(0L, shipper.lag_bytes)
+  }
+
+  def testLagAndBackPressure = {
+    shipper = new LogShipper("test shipper", 1000)
+    val blocked = new CountDownLatch(1)
+    shipper.ship(600) {
+      blocked.await()
+    }
+    assertEquals(600L, shipper.lag_bytes)
+
+    // The next chunk does not fit so it has to wait for the first one.
+    val writer = new Thread() {
+      override def run() = shipper.ship(600) {}
+    }
+    writer.start()
+    writer.join(200)
+    assertTrue(writer.isAlive)
+    assertTrue(shipper.lag_time >= 200)
+
+    blocked.countDown()
+    writer.join()
+    shipper.sync {}
+    assertEquals(0L, shipper.lag_bytes)
+    assertEquals(0L, shipper.lag_time)
+  }
+
+  def testFailureStopsShipping = {
+    shipper = new LogShipper("test shipper", 1024)
+    var shipped = false
+    shipper.ship(10) {
+      throw new IOException("expected")
+    }
+    shipper.execute {
+      shipped = true
+    }
+    try {
+      shipper.sync {}
+      fail("expected IOException")
+    } catch {
+      case e:IOException =>
+    }
+    assertFalse(shipped)
+    try {
+      shipper.ship(10) {}
+      fail("expected IOException")
+    } catch {
+      case e:IOException =>
+    }
+  }
+
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb
+
+import junit.framework.TestCase
+import junit.framework.Assert._
+import util.{LongHashSet, LongLongHashMap}
+import collection.mutable.HashMap
+import java.util.Random
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class LongHashTableTest extends TestCase {
+
+  def testMatchesHashMap = {
+    val random = new Random(42)
+    val map = new LongLongHashMap()
+    val expected = HashMap[Long, Long]()
+    for( i <- 0 until 100000 ) {
+      // Log positions are multiples of the log size, keep the keys clustered.
+      val key = random.nextInt(2000).toLong * 100 * 1024 * 1024
+      random.nextInt(3) match {
+        case 0 =>
+          map.put(key, i)
+          expected.put(key, i)
+        case 1 =>
+          val value = expected.getOrElse(key, 0L) + 1
+          expected.put(key, value)
+          assertEquals(value, map.addAndGet(key, 1))
+        case 2 =>
+          assertEquals(expected.remove(key).isDefined, map.remove(key))
+      }
+      assertEquals(expected.size, map.size)
+    }
+    for( (key, value) <- expected ) {
+      assertTrue(map.contains(key))
+      assertEquals(value, map.get(key))
+    }
+    var count = 0
+    map.foreach { (key, value) =>
+      assertEquals(Some(value), expected.get(key))
+      count += 1
+    }
+    assertEquals(expected.size, count)
+    assertEquals(expected.keySet, map.keys.toSet)
+  }
+
+  def testSet = {
+    val set = new LongHashSet()
+    for( i <- 0L until 1000L ) {
+      set.add(i)
+      set.add(i)
+    }
+    assertEquals(1000, set.size)
+    assertTrue(set.remove(500))
+    assertFalse(set.contains(500))
+    set.clear()
+    assertTrue(set.isEmpty)
+  }
+
+  def testCollectionMetaMap = {
+    val meta = new CollectionMetaMap()
+    meta.increment(1, 10)
+    assertFalse(meta.contains(1))
+
+    for( key <- 1L to 100L ) {
+      meta.put(key, 0, 0)
+    }
+    meta.increment(7, 10)
+    meta.increment(7, 11)
+    meta.decrement(7)
+    assertEquals(1L, meta.sizeOf(7))
+    assertEquals(11L, meta.lastSeqOf(7))
+
+    assertTrue(meta.remove(7))
+    assertEquals(0L, meta.sizeOf(7))
+    assertEquals(0L, meta.lastSeqOf(7))
+    assertEquals(99, meta.size)
+  }
+
+}
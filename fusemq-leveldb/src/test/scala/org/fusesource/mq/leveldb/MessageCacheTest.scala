@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb
+
+import junit.framework.TestCase
+import junit.framework.Assert._
+import org.apache.activemq.command.{ProducerId, MessageId, ActiveMQTextMessage}
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class MessageCacheTest extends TestCase {
+
+  val producer = new ProducerId("ID:test:1:1")
+
+  def message(seq:Int) = {
+    val rc = new ActiveMQTextMessage
+    rc.setMessageId(new MessageId(producer, seq))
+    rc.setText("message "+seq)
+    rc
+  }
+
+  def testReturnsCopies = {
+    val cache = new MessageCache(1024*1024, true)
+    assertNull(cache.get((0L, 10)))
+    cache.put((0L, 10), message(1))
+
+    val copy = cache.get((0L, 10))
+    assertEquals(new MessageId(producer, 1), copy.getMessageId)
+    copy.getMessageId.setEntryLocator((1L, 1L))
+    copy.setRedeliveryCounter(5)
+
+    val other = cache.get((0L, 10))
+    assertNull(other.getMessageId.getEntryLocator)
+    assertEquals(0, other.getRedeliveryCounter)
+    assertEquals(1L, cache.misses.get)
+    assertEquals(2L, cache.hits.get)
+  }
+
+  def testLruEviction = {
+    val size = message(1).getSize
+    val cache = new MessageCache(size*2, true)
+    cache.put((1L, 10), message(1))
+    cache.put((2L, 10), message(2))
+    // Touch the first one so that the second becomes the eldest.
+    assertNotNull(cache.get((1L, 10)))
+    cache.put((3L, 10), message(3))
+
+    assertEquals(1L, cache.evictions.get)
+    assertNotNull(cache.get((1L, 10)))
+    assertNull(cache.get((2L, 10)))
+    assertNotNull(cache.get((3L, 10)))
+    assertTrue(cache.size <= size*2)
+  }
+
+  def testFifoEviction = {
+    val size = message(1).getSize
+    val cache = new MessageCache(size*2, false)
+    cache.put((1L, 10), message(1))
+    cache.put((2L, 10), message(2))
+    assertNotNull(cache.get((1L, 10)))
+    cache.put((3L, 10), message(3))
+
+    assertNull(cache.get((1L, 10)))
+    assertNotNull(cache.get((2L, 10)))
+    assertNotNull(cache.get((3L, 10)))
+  }
+
+}
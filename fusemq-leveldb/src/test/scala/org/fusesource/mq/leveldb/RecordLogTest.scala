@@ -0,0 +1,402 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb
+
+import junit.framework.TestCase
+import junit.framework.Assert._
+import java.io.{RandomAccessFile, File}
+import org.fusesource.hawtbuf.Buffer
+import util.FileSupport._
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class RecordLogTest extends TestCase {
+
+  val directory = new File("target/test-data/record-log")
+  var log: RecordLog = null
+  var direct_write_buffer = false
+  var compress_blocks = false
+  var preallocate_logs = 0
+  var truncate_on_open = true
+
+  override def setUp() {
+    directory.recursiveDelete
+    directory.mkdirs()
+    log = open_log
+  }
+
+  override def tearDown() {
+    if( log!=null ) {
+      log.close
+    }
+  }
+
+  def open_log:RecordLog = open_log(0)
+
+  def open_log(start_position:Long) = {
+    val rc = new RecordLog(directory, ".log")
+    rc.start_position = start_position
+    rc.logSize = 1024*512
+    rc.direct_write_threshold = 1024
+    rc.direct_write_buffer = direct_write_buffer
+    rc.compress_blocks = compress_blocks
+    rc.preallocate_logs = preallocate_logs
+    rc.truncate_on_open = truncate_on_open
+    rc.verify_checksums = true
+    rc.open
+    rc
+  }
+
+  def data(size:Int, fill:Int) = {
+    val rc = new Buffer(size)
+    java.util.Arrays.fill(rc.data, fill.toByte)
+    rc
+  }
+
+  def testDirectWritesAreInterleavedWithBufferedWrites = {
+    val records = List(data(100, 1), data(1024*64, 2), data(100, 3), data(1024*8, 4))
+    val positions = log.appender { appender =>
+      records.map(x => appender.append(LevelDBClient.LOG_DATA, x)._1)
+    }
+
+    positions.zip(records).foreach { case (pos, expected) =>
+      assertEquals(Some(expected), log.read(pos, expected.length))
+    }
+
+    // The records should still be there after recovering the log.
+    log.close
+    log = open_log
+    positions.zip(records).foreach { case (pos, expected) =>
+      assertEquals(Some(expected), log.read(pos, expected.length))
+    }
+  }
+
+  def testDirectWriteBuffer = {
+    log.close
+    direct_write_buffer = true
+    log = open_log
+    def direct_buffer = log.current_appender.write_buffer.asInstanceOf[RecordLog.DirectWriteBuffer].buffer
+    val first_buffer = direct_buffer
+    val records = (0 until 500).map(i => data(50+(i*97)%3000, i))
+    val locators = records.map { record =>
+      log.appender { appender =>
+        (appender.append(LevelDBClient.LOG_DATA, record)._1, record.length)
+      }
+    }
+    assertTrue(log.log_infos.size > 1)
+    assertEquals(records.toList, log.read_batch(locators.toArray).toList)
+
+    // The rotated appender handed it's buffer on to the next one.
+    assertTrue(first_buffer eq direct_buffer)
+
+    log.close
+    log = open_log
+    assertEquals(records.toList, log.read_batch(locators.toArray).toList)
+  }
+
+  def testCompressedBlocks = {
+    log.close
+    directory.recursiveDelete
+    compress_blocks = true
+    log = open_log
+    // Mix in records that bypass the write buffer.
+    val records = (0 until 500).map(i => data(if( i%50==0 ) 1024*8 else 50+(i*97)%3000, i))
+    val locators = records.map { record =>
+      log.appender { appender =>
+        (appender.append(LevelDBClient.LOG_DATA, record)._1, record.length)
+      }
+    }
+    assertTrue(log.log_infos.size > 1)
+    locators.zip(records).foreach { case ((pos, length), expected) =>
+      assertEquals(Some(expected), log.read(pos, length))
+    }
+
+    log.close
+    log = open_log
+    val infos = log.log_infos.toList.dropRight(1)
+    infos.zip(infos.drop(1)).foreach { case (info, next) =>
+      // The lengths are the uncompressed ones.
+      assertEquals(next.position, info.limit)
+      assertTrue(info.file.length < info.length)
+    }
+    assertEquals(records.toList, log.read_batch(locators.toArray).toList)
+  }
+
+  def testPurgedBlocksAreNotServedFromTheCache = {
+    log.close
+    directory.recursiveDelete
+    compress_blocks = true
+    log = open_log
+    def fill_first_log(fill:Int) = {
+      val pos = log.appender(_.append(LevelDBClient.LOG_DATA, data(100, fill))._1)
+      while( log.appender_start == pos ) {
+        log.appender(_.append(LevelDBClient.LOG_DATA, data(1024*16, fill)))
+      }
+      pos
+    }
+    val pos = fill_first_log(1)
+    assertEquals(Some(data(100, 1)), log.read(pos, 100))
+
+    // Purge the log like the client does and write different data at the
+    // same position.
+    log.close
+    directory.recursiveDelete
+    directory.mkdirs()
+    log.open
+    assertEquals(pos, fill_first_log(2))
+    assertEquals(Some(data(100, 2)), log.read(pos, 100))
+  }
+
+  def testTornBlockIsDroppedOnRecovery = {
+    log.close
+    directory.recursiveDelete
+    compress_blocks = true
+    log = open_log
+    val first = log.appender { appender =>
+      appender.append(LevelDBClient.LOG_DATA, data(100, 1))._1
+    }
+    val uow_end = log.appender_limit
+    log.appender { appender =>
+      appender.append(LevelDBClient.LOG_DATA, data(1024*64, 2))._1
+    }
+    val file = log.log_info(first).get.file
+    val second_frame = log.current_appender.file_offset(uow_end).get
+    log.close
+
+    // Simulate a crash part way through writing the second frame.
+    using(new RandomAccessFile(file, "rw")) { raf =>
+      raf.seek(second_frame+RecordLog.BLOCK_HEADER_SIZE)
+      raf.write(new Array[Byte](8))
+    }
+
+    log = open_log
+    assertEquals(uow_end, log.appender_limit)
+    assertEquals(Some(data(100, 1)), log.read(first, 100))
+    assertEquals(second_frame, file.length)
+  }
+
+  def testTornDirectWriteIsDroppedOnRecovery = {
+    val first = log.appender { appender =>
+      appender.append(LevelDBClient.LOG_DATA, data(100, 1))._1
+    }
+    val uow_end = log.appender_limit
+    val second = log.appender { appender =>
+      appender.append(LevelDBClient.LOG_DATA, data(1024*64, 2))._1
+    }
+    log.close
+
+    // Simulate a crash part way through writing the large record.
+    using(new RandomAccessFile(log.log_info(second).get.file, "rw")) { raf =>
+      raf.seek(second-log.log_info(second).get.position+RecordLog.LOG_HEADER_SIZE+1024*32)
+      raf.write(new Array[Byte](1024*32))
+    }
+
+    log = open_log
+    assertEquals(uow_end, log.appender_limit)
+    assertEquals(Some(data(100, 1)), log.read(first, 100))
+  }
+
+  def testBatchedReadsSpanningLogFiles = {
+    val records = (0 until 500).map(i => data(50+(i*97)%3000, i))
+    val locators = records.map { record =>
+      log.appender { appender =>
+        (appender.append(LevelDBClient.LOG_DATA, record)._1, record.length)
+      }
+    }
+    assertTrue(log.log_infos.size > 1)
+
+    // Read them back in a scrambled order with a gap here and there.
+    val picked = locators.indices.filter(_ % 7 != 3).sortBy(i => (i*31)%locators.size)
+    val rc = log.read_batch(picked.map(locators(_)).toArray)
+    picked.zip(rc).foreach { case (i, actual) =>
+      assertEquals(records(i), actual)
+    }
+  }
+
+  def testStripeLogPositions = {
+    log.close
+    directory.recursiveDelete
+    val start = 2L << LevelDBClient.STRIPE_POSITION_SHIFT
+    log = open_log(start)
+    assertEquals(start, log.appender_start)
+
+    val records = (1 to 100).map(i => data(1024*16, i)).toArray
+    val positions = records.map { record =>
+      log.appender(_.append(LevelDBClient.LOG_DATA, record)._1)
+    }
+    positions.foreach(pos => assertEquals(2, LevelDBClient.stripe_of(pos)))
+    assertTrue(log.log_infos.size > 1)
+
+    // An existing log keeps it's positions, no matter the start position.
+    log.close
+    log = open_log
+    assertEquals(start, log.log_infos.head.position)
+    assertEquals(records.toList, log.read_batch(positions.zip(records.map(_.length))).toList)
+  }
+
+  def preallocated_files = directory.listFiles.filter(_.getName.endsWith(RecordLog.PREALLOCATED_SUFFIX)).toList
+
+  def wait_for_preallocated(count:Int) = {
+    val deadline = System.currentTimeMillis() + 5000
+    while( preallocated_files.size < count && System.currentTimeMillis() < deadline ) {
+      Thread.sleep(10)
+    }
+    assertEquals(count, preallocated_files.size)
+  }
+
+  def testRotationUsesPreallocatedLogs = {
+    log.close
+    preallocate_logs = 2
+    log = open_log
+    wait_for_preallocated(2)
+    val ready = preallocated_files
+
+    val first = log.appender_start
+    while( log.appender_start == first ) {
+      log.appender(_.append(LevelDBClient.LOG_DATA, data(1024*16, 1)))
+    }
+    // One of them became the new appender and got replaced.
+    assertEquals(1, ready.count(!_.exists))
+    wait_for_preallocated(2)
+  }
+
+  def testRecycledLogsAreNotReplayed = {
+    val records = (1 to 100).map(i => data(1024*16, i))
+    val positions = records.map { record =>
+      log.appender(_.append(LevelDBClient.LOG_DATA, record)._1)
+    }
+    val first = log.log_infos.head.position
+    log.recycle_logs = true
+    log.preallocate_logs = 1
+    log.delete(first)
+    assertEquals(1, preallocated_files.size)
+
+    val start = log.appender_start
+    while( log.appender_start == start ) {
+      log.appender(_.append(LevelDBClient.LOG_DATA, data(100, 0)))
+    }
+    // The new appender holds the records of the deleted log file past
+    // its zeroed head.
+    using(new RandomAccessFile(log.current_appender.file, "r")) { raf =>
+      assertEquals(0, raf.readByte())
+      raf.seek(RecordLog.BLOCK_HEADER_SIZE)
+      assertEquals(1, raf.readByte())
+    }
+
+    // Lines up exactly with the old records, but they were not part of
+    // this log's units of work.
+    val pos = log.appender(_.append(LevelDBClient.LOG_DATA, data(1024*16, 200))._1)
+    val limit = log.appender_limit
+    log.close
+    log = open_log
+    assertEquals(limit, log.appender_limit)
+    assertEquals(Some(data(1024*16, 200)), log.read(pos, 1024*16))
+    assertEquals(records.last, log.read(positions.last, 1024*16).get)
+  }
+
+  def testStaleBlocksOfRecycledLogsAreNotIndexed = {
+    log.close
+    directory.recursiveDelete
+    compress_blocks = true
+    log = open_log
+    def record(i:Int) = data(1024*16, i)
+    (1 to 100).foreach { i =>
+      log.appender(_.append(LevelDBClient.LOG_DATA, record(i)))
+    }
+    val first = log.log_infos.head.position
+    log.recycle_logs = true
+    log.preallocate_logs = 1
+    log.delete(first)
+
+    val start = log.appender_start
+    while( log.appender_start == start ) {
+      log.appender(_.append(LevelDBClient.LOG_DATA, data(100, 0)))
+    }
+    // The frames of this record line up with the ones of the deleted log.
+    val recycled = log.appender_start
+    val pos = log.appender(_.append(LevelDBClient.LOG_DATA, record(200))._1)
+    val limit = log.appender_limit
+
+    // Replicas don't truncate the log on recovery so the recycled file
+    // keeps its stale tail.
+    log.close
+    truncate_on_open = false
+    log = open_log
+    assertEquals(limit, log.appender_limit)
+    log.close
+    log = open_log
+    assertEquals(Some(limit), log.log_info(recycled).map(_.limit))
+    assertEquals(Some(record(200)), log.read(pos, 1024*16))
+  }
+
+  def testReadsWhileTheLogRotates = reads_while_the_log_rotates
+
+  def testMappedReadsWhileTheLogRotates = {
+    log.mmap_reads = true
+    reads_while_the_log_rotates
+  }
+
+  def reads_while_the_log_rotates = {
+    val written = new java.util.concurrent.ConcurrentLinkedQueue[(Long, Int)]()
+    val failure = new java.util.concurrent.atomic.AtomicReference[Throwable]()
+    val done = new java.util.concurrent.atomic.AtomicBoolean()
+    val readers = (1 to 4).map { i =>
+      val thread = new Thread() {
+        override def run() = try {
+          while( !done.get ) {
+            val it = written.iterator()
+            while( it.hasNext ) {
+              val (pos, fill) = it.next()
+              assertEquals(Some(data(1024, fill)), log.read(pos, 1024))
+            }
+          }
+        } catch {
+          case e:Throwable => failure.set(e)
+        }
+      }
+      thread.start()
+      thread
+    }
+    for( i <- 1 to 2000 ) {
+      val pos = log.appender(_.append(LevelDBClient.LOG_DATA, data(1024, i))._1)
+      written.add((pos, i))
+    }
+    done.set(true)
+    readers.foreach(_.join())
+    assertNull(failure.get)
+    assertTrue(log.log_infos.size > 2)
+    log.log_infos.zip(log.log_infos.drop(1)).foreach { case (info, next) =>
+      assertTrue(info.position < next.position)
+    }
+  }
+
+  def testRotatedLogInfosHaveTheirLength = {
+    (1 to 100).foreach { i =>
+      log.appender(_.append(LevelDBClient.LOG_DATA, data(1024*16, i)))
+    }
+    val rotated = log.log_infos.filter(_.position != log.appender_start).toList
+    assertTrue(rotated.size > 1)
+    rotated.foreach { info =>
+      assertEquals(info.file.length, info.length)
+    }
+  }
+
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb
+
+import junit.framework.TestCase
+import junit.framework.Assert._
+import org.apache.activemq.broker.ConnectionContext
+import org.apache.activemq.command.{MessageId, ProducerId, ActiveMQTextMessage, ActiveMQQueue}
+import java.io.File
+import java.net.ServerSocket
+import util.FileSupport._
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class ReplicatedLevelDBStoreTest extends TestCase {
+
+  val data_directory = new File("target/activemq-data/replicated-leveldb")
+  val destination = new ActiveMQQueue("TEST")
+  val producer_id = new ProducerId("ID:test:1:1")
+  var stores = List[ReplicatedLevelDBStore]()
+
+  override def setUp() {
+    data_directory.recursiveDelete
+  }
+
+  override def tearDown() {
+    for( store <- stores ) {
+      store.stopStandby
+      if( store.isStarted ) {
+        store.stop
+      }
+    }
+  }
+
+  def free_port = {
+    val socket = new ServerSocket(0)
+    try {
+      socket.getLocalPort
+    } finally {
+      socket.close()
+    }
+  }
+
+  def create_store(name:String, bind:Int, replica:Int, mode:String) = {
+    val store = new ReplicatedLevelDBStore
+    store.setDirectory(data_directory / name)
+    store.setBind("127.0.0.1:"+bind)
+    store.setReplicas("127.0.0.1:"+replica)
+    store.setReplicationMode(mode)
+    store.setStandbyInterval(100)
+    stores ::= store
+    store
+  }
+
+  def send(store:LevelDBStore, ids:Range) = {
+    val queue = store.createQueueMessageStore(destination)
+    for( i <- ids ) {
+      val message = new ActiveMQTextMessage
+      message.setText("message "+i)
+      message.setMessageId(new MessageId(producer_id, i))
+      message.setDestination(destination)
+      message.setResponseRequired(true)
+      queue.addMessage(new ConnectionContext, message)
+    }
+  }
+
+  def wait_for_replicas(store:LevelDBStore) = {
+    val client = store.db.client.asInstanceOf[ReplicatedLevelDBClient]
+    val deadline = System.currentTimeMillis() + 10000
+    while( client.replicas.exists(_.connection == null) && System.currentTimeMillis() < deadline ) {
+      Thread.sleep(10)
+    }
+    assertTrue(client.replicas.forall(_.connection != null))
+  }
+
+  def count(store:LevelDBStore) = store.createQueueMessageStore(destination).getMessageCount
+
+  def failover(mode:String) = {
+    val (port_a, port_b) = (free_port, free_port)
+    val b = create_store("b", port_b, port_a, mode)
+    b.startStandby
+    val a = create_store("a", port_a, port_b, mode)
+    a.start
+    wait_for_replicas(a)
+    send(a, 1 to 100)
+    a.stop
+
+    // The old master becomes the standby of the new one.
+    val a2 = create_store("a", port_a, port_b, mode)
+    a2.startStandby
+    b.start
+    assertEquals(100, count(b))
+    send(b, 101 to 150)
+    b.stop
+
+    a2.start
+    assertEquals(150, count(a2))
+  }
+
+  def testQuorumFailover = failover("quorum")
+
+  def testAsyncFailover = failover("async")
+
+}
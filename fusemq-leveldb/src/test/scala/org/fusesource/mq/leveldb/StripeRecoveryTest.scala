@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb
+
+import junit.framework.TestCase
+import junit.framework.Assert._
+import org.apache.activemq.broker.ConnectionContext
+import org.apache.activemq.command._
+import org.apache.activemq.store.MessageRecoveryListener
+import java.io.{RandomAccessFile, File}
+import util.FileSupport._
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class StripeRecoveryTest extends TestCase {
+
+  val data_directory = new File("target/activemq-data/stripe-recovery")
+  val destination = new ActiveMQQueue("TEST")
+  val producer_id = new ProducerId("ID:test:1:1")
+  var stores = List[LevelDBStore]()
+
+  override def setUp() {
+    data_directory.recursiveDelete
+  }
+
+  override def tearDown() {
+    stores.filter(_.isStarted).foreach(_.stop)
+  }
+
+  def create_store(name:String) = {
+    val store = new LevelDBStore
+    store.setDirectory(data_directory / name)
+    store.setLogStripeDirectories((data_directory / (name+"-stripe")).getCanonicalPath)
+    store.setFlushDelay(0)
+    stores ::= store
+    store
+  }
+
+  def recover(store:LevelDBStore) = {
+    val queue = store.createQueueMessageStore(destination)
+    val messages = new java.util.ArrayList[Message]()
+    queue.recover(new MessageRecoveryListener {
+      def recoverMessage(message:Message) = {
+        messages.add(message)
+        true
+      }
+      def recoverMessageReference(id:MessageId) = true
+      def hasSpace = true
+      def isDuplicate(id:MessageId) = false
+    })
+    import collection.JavaConversions._
+    messages.toList
+  }
+
+  def testEntriesOfLostStripeDataAreDropped = {
+    val master = create_store("master")
+    master.start
+    val queue = master.createQueueMessageStore(destination)
+    for( i <- 1 to 100 ) {
+      val message = new ActiveMQTextMessage
+      message.setText("message "+i)
+      message.setMessageId(new MessageId(producer_id, i))
+      message.setDestination(destination)
+      message.setResponseRequired(true)
+      queue.addMessage(new ConnectionContext, message)
+    }
+    val stripe = master.db.client.stripes(0)
+    assertEquals(1, stripe.log_infos.size)
+    val stripe_length = stripe.appender_limit - stripe.appender_start
+    master.stop
+
+    // The main log made it to disk but only half of the stripe did.
+    def copy_logs(from:String, to:String) = {
+      (data_directory / to).mkdirs()
+      (data_directory / from).listFiles.filter(_.getName.endsWith(LevelDBClient.LOG_SUFFIX)).foreach { file =>
+        file.copyTo(data_directory / to / file.getName)
+      }
+    }
+    copy_logs("master", "copy")
+    copy_logs("master-stripe", "copy-stripe")
+    val stripe_file = (data_directory / "copy-stripe").listFiles.filter(_.getName.endsWith(LevelDBClient.LOG_SUFFIX)).head
+    using(new RandomAccessFile(stripe_file, "rw")) { raf =>
+      raf.setLength(stripe_length/2)
+    }
+
+    val store = create_store("copy")
+    store.start
+    val recovered = recover(store).map(_.asInstanceOf[ActiveMQTextMessage].getText)
+    assertTrue(recovered.size > 0 && recovered.size < 100)
+    assertEquals((1 to recovered.size).map("message "+_).toList, recovered)
+    assertEquals(recovered.size, store.createQueueMessageStore(destination).getMessageCount)
+  }
+
+}
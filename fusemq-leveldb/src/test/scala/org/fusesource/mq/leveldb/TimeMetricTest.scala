@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2012 FuseSource Corp. All rights reserved.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mq.leveldb
+
+import junit.framework.TestCase
+import junit.framework.Assert._
+import util.TimeMetric
+import util.TimeMetric._
+
+/**
+ * <p>
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class TimeMetricTest extends TestCase {
+
+  def testBucketsAreOrderedAndTight = {
+    var last = -1
+    for( value <- (0L until 100000L) ++ List(1L<<30, (1L<<30)+12345, 1L<<40) ) {
+      val b = bucket(value)
+      assertTrue(b >= last)
+      assertTrue(bucket_limit(b) >= value)
+      // The bucket limit is off by at most 1/16th.
+      assertTrue(bucket_limit(b) - value <= value/SUB_BUCKETS)
+      last = b
+    }
+    assertEquals(BUCKETS-1, bucket(Long.MaxValue))
+    assertEquals(0, bucket(-5))
+  }
+
+  def testPercentiles = {
+    val metric = TimeMetric()
+    for( i <- 1 to 1000 ) {
+      metric.add(i * 1000000L)
+    }
+    assertEquals(1000L, metric.count)
+    assertEquals(1000.0, metric.get)
+    assertEquals(500.0, metric.percentile(50), 500.0/SUB_BUCKETS)
+    assertEquals(990.0, metric.percentile(99), 990.0/SUB_BUCKETS)
+
+    val before = metric.snapshot
+    metric.add(5 * 1000000L)
+    val delta = metric.snapshot - before
+    assertEquals(1L, delta.count)
+    assertEquals(5.0, delta.percentile(50), 5.0/SUB_BUCKETS)
+
+    // Only the max gets reset, the histogram keeps counting so that
+    // deltas between snapshots stay positive.
+    assertEquals(1000.0, metric.reset)
+    assertEquals(0.0, metric.get)
+    assertEquals(1001L, metric.count)
+    assertEquals(0L, (metric.snapshot - before).counts.filter(_ < 0).length)
+
+    // The interval starts over though.
+    assertEquals(0L, metric.interval.count)
+    metric.add(7 * 1000000L)
+    assertEquals(1L, metric.interval.count)
+    assertEquals(7.0, metric.interval.percentile(99), 7.0/SUB_BUCKETS)
+  }
+
+  def testConcurrentRecording = {
+    val metric = TimeMetric()
+    val threads = (1 to 8).map { i =>
+      new Thread() {
+        override def run() = for( j <- 1 to 10000 ) metric.add(j)
+      }
+    }
+    threads.foreach(_.start())
+    threads.foreach(_.join())
+    assertEquals(80000L, metric.count)
+    assertEquals(10000/1000000.0, metric.get)
+  }
+
+}